@@ -0,0 +1,17 @@
+package db.migration;
+
+import org.flywaydb.core.api.migration.Context;
+
+import embeddedjettyexamples.OnlineMigration;
+
+/**
+ * Index greetings by version, without locking out writers while it builds.
+ * Backfills key their batches on version, so they need this.
+ */
+public class V3__Index_greeting_version extends OnlineMigration {
+    @Override
+    public void migrate(Context context) throws Exception {
+        createIndexConcurrently(context, "greetings_version",
+                "create index concurrently greetings_version on greetings (version)");
+    }
+}
@@ -0,0 +1,117 @@
+package db.migration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.logging.Logger;
+
+import org.flywaydb.core.api.migration.Context;
+
+import embeddedjettyexamples.GreetingPartitions;
+import embeddedjettyexamples.OnlineMigration;
+
+/**
+ * Replace greetings with a copy partitioned by month on added, indexed on
+ * (added, version) and with greeting as text instead of a padded char(255).
+ * <p>
+ * The application keeps using the old table while we copy it: a trigger copies
+ * new greetings across, existing ones are backfilled in batches, and then the
+ * two tables swap names in one short transaction.
+ */
+public class V4__Partition_greetings_by_month extends OnlineMigration {
+    private static final Logger logger = Logger.getLogger(V4__Partition_greetings_by_month.class.getName());
+
+    @Override
+    public void migrate(Context context) throws Exception {
+        var connection = context.getConnection();
+        connection.setAutoCommit(true);
+
+        // if we died after the swap, all that's left is tidying up
+        if (!GreetingPartitions.isPartitioned(connection, "greetings")) {
+            createPartitionedCopy(connection);
+            backfill(context, "V4 copy greetings to greetings_partitioned", "greetings", "version",
+                    "insert into greetings_partitioned (greeting, added, version)"
+                            + " select rtrim(greeting), coalesce(added, '-infinity'), version from greetings"
+                            + " where version > ? and version <= ? on conflict do nothing",
+                    10_000, Duration.ofMillis(20));
+            swap(connection);
+        }
+        execute(connection, "drop table if exists greetings_unpartitioned");
+        execute(connection, "drop function if exists greetings_copy_to_partitioned()");
+    }
+
+    private void createPartitionedCopy(Connection connection) throws SQLException {
+        execute(connection, "create table if not exists greetings_partitioned ("
+                + " greeting text,"
+                + " added timestamp with time zone not null default current_timestamp,"
+                + " version bigint not null default nextval('greetings_version_seq')"
+                + ") partition by range (added)");
+
+        YearMonth firstMonth;
+        try (var statement = connection.createStatement();
+                var row = statement.executeQuery("select min(added) from greetings where added > '-infinity'")) {
+            row.next();
+            var oldest = row.getObject(1, OffsetDateTime.class);
+            firstMonth = YearMonth.from(oldest == null ? OffsetDateTime.now(ZoneOffset.UTC)
+                    : oldest.withOffsetSameInstant(ZoneOffset.UTC));
+        }
+        GreetingPartitions.createHistoricPartition(connection, "greetings_partitioned", firstMonth);
+        GreetingPartitions.createMonthlyPartitions(connection, "greetings_partitioned", firstMonth,
+                YearMonth.now(ZoneOffset.UTC).plusMonths(3));
+
+        // created on the parent while it's still empty, so it's cheap, and every
+        // partition gets its own copy. It lets the backfill and the trigger both
+        // copy a row without duplicating it, and serves the sharded "order by added
+        // desc limit 1"
+        execute(connection, "create unique index if not exists greetings_partitioned_added_version"
+                + " on greetings_partitioned (added, version)");
+        // and later backfills key on version, as does the latest greeting - one
+        // probe of this index per partition
+        execute(connection, "create index if not exists greetings_partitioned_version"
+                + " on greetings_partitioned (version)");
+
+        execute(connection, "create or replace function greetings_copy_to_partitioned() returns trigger as $$"
+                + " begin"
+                + " insert into greetings_partitioned (greeting, added, version)"
+                + " values (rtrim(new.greeting), coalesce(new.added, '-infinity'), new.version)"
+                + " on conflict do nothing;"
+                + " return new;"
+                + " end $$ language plpgsql");
+        execute(connection, "drop trigger if exists greetings_copy_to_partitioned on greetings");
+        execute(connection, "create trigger greetings_copy_to_partitioned after insert on greetings"
+                + " for each row execute function greetings_copy_to_partitioned()");
+    }
+
+    private void swap(Connection connection) throws SQLException, InterruptedException {
+        for (int attempt = 1;; ++attempt) {
+            connection.setAutoCommit(false);
+            try {
+                // the rename needs an exclusive lock. Give up quickly rather than
+                // make every insert queue up behind us, and try again
+                execute(connection, "set local lock_timeout = '2s'");
+                execute(connection, "lock table greetings in access exclusive mode");
+                execute(connection, "drop trigger greetings_copy_to_partitioned on greetings");
+                execute(connection, "alter table greetings rename to greetings_unpartitioned");
+                execute(connection, "alter index greetings_version rename to greetings_unpartitioned_version");
+                execute(connection, "alter table greetings_partitioned rename to greetings");
+                execute(connection, "alter index greetings_partitioned_added_version rename to greetings_added_version");
+                execute(connection, "alter index greetings_partitioned_version rename to greetings_version");
+                execute(connection, "alter sequence greetings_version_seq owned by greetings.version");
+                connection.commit();
+                return;
+            } catch (SQLException e) {
+                connection.rollback();
+                // 55P03 is lock_not_available
+                if (!"55P03".equals(e.getSQLState()) || attempt == 10)
+                    throw e;
+                logger.info("couldn't lock greetings to swap in the partitioned table, retrying");
+                Thread.sleep(1000);
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+}
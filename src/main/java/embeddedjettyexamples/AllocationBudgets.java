@@ -0,0 +1,193 @@
+package embeddedjettyexamples;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+
+import com.sun.management.ThreadMXBean;
+
+import embeddedjettyexamples.SimpleServer5WithLogging.UnshardedDatabase;
+
+/**
+ * Bytes allocated per request, for each route, against a budget - so a change
+ * that makes a route a lot more garbage-hungry fails the build instead of
+ * showing up later as GC pressure. mvn verify runs it (see pom.xml).
+ * <p>
+ * The server runs in this JVM with the in-memory database stand-in, reachable
+ * only through a LocalConnector. Each route is warmed up, then sent a batch of
+ * requests; the allocation counters of Jetty's threads, before and after,
+ * give bytes per request. That covers everything the server does for the
+ * request - filters, Jersey, Jackson, the access log line - but not the
+ * database driver, or Jdbi's handles, which need a real database.
+ * <p>
+ * Usage: AllocationBudgets budgetsFile [--record]
+ * <p>
+ * --record writes what was measured, plus headroom, as the new budgets. Do that
+ * when a route's allocations have gone up for a good reason, and commit the
+ * file with the change.
+ */
+public class AllocationBudgets {
+    private static final int WARMUP_REQUESTS = 3000;
+    private static final int MEASURED_REQUESTS = 2000;
+    // measurements wander a few percent from run to run
+    private static final double HEADROOM = 1.25;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: AllocationBudgets budgetsFile [--record]");
+            System.exit(1);
+        }
+        Path budgetsFile = Paths.get(args[0]);
+        boolean record = args.length > 1 && args[1].equals("--record");
+
+        // everything on the one, in-process connector
+        System.setProperty("port", "-1");
+        System.setProperty("adminPort", "-1");
+        var greetingEvents = new GreetingEvents();
+        var greetings = new InMemoryGreetings(greetingEvents);
+        var database = new UnshardedDatabase(greetings);
+        greetings.watcher = database;
+        database.listening();
+        database.addGreeting("allocation budgets");
+
+        Server server = SimpleServer5WithLogging.createServer(database, greetingEvents, null, new MetricsServlet());
+        var connector = new LocalConnector(server);
+        connector.setName("api");
+        server.setConnectors(new Connector[] { connector });
+        // format every line, as the real server does, but don't print them
+        server.setRequestLog(new RequestTimings.AccessLog(line -> {
+        }));
+        server.start();
+
+        var measured = new LinkedHashMap<String, Long>();
+        try {
+            for (var route : routes().entrySet())
+                measured.put(route.getKey(), bytesPerRequest(connector, route.getValue()));
+        } finally {
+            server.stop();
+        }
+
+        if (record) {
+            var budgets = new TreeMap<String, Long>();
+            // round up to a whole 256 bytes, so small routes get some headroom too
+            measured.forEach((route, bytes) -> budgets.put(route, ((long) (bytes * HEADROOM) + 255) / 256 * 256));
+            write(budgetsFile, budgets);
+            System.out.println("recorded budgets in " + budgetsFile);
+            return;
+        }
+
+        var budgets = read(budgetsFile);
+        boolean passed = true;
+        System.out.printf("%-32s %12s %12s%n", "route", "bytes/req", "budget");
+        for (var route : measured.entrySet()) {
+            String budget = budgets.getProperty(route.getKey());
+            boolean over = budget == null || route.getValue() > Long.parseLong(budget);
+            passed &= !over;
+            System.out.printf("%-32s %12d %12s%s%n", route.getKey(), route.getValue(),
+                    budget == null ? "none" : budget, over ? "  OVER" : "");
+        }
+        if (!passed)
+            System.out.println("Over budget. If that's expected, run with --record and commit " + budgetsFile);
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * @return raw requests by name. Names are keys in the budgets file
+     */
+    private static Map<String, String> routes() throws IOException {
+        var webjar = new Properties();
+        try (var in = AllocationBudgets.class
+                .getResourceAsStream("/META-INF/maven/org.webjars/swagger-ui/pom.properties")) {
+            webjar.load(in);
+        }
+        String swaggerUi = "/swagger-ui/" + webjar.getProperty("version");
+        String greeting = "{\"greeting\":\"allocation budgets\"}";
+
+        var routes = new LinkedHashMap<String, String>();
+        routes.put("get.hello", get("/api/hello", ""));
+        // the CORS filter's regex and response wrapper only run with an Origin
+        routes.put("get.hello.cors", get("/api/hello", "Origin: http://localhost:3000\r\n"));
+        routes.put("get.hello.history", get("/api/hello/history?limit=20", ""));
+        routes.put("post.hello", "POST /api/hello HTTP/1.1\r\nHost: localhost\r\n"
+                + "Content-Type: application/json\r\nContent-Length: " + greeting.length() + "\r\n\r\n" + greeting);
+        routes.put("get.hello.repeat", get("/api/hello/repeat?repeat=100", ""));
+        routes.put("get.swagger.json", get("/swagger.json", "Accept-Encoding: gzip\r\n"));
+        routes.put("get.swagger-ui.index", get(swaggerUi + "/index.html", ""));
+        routes.put("get.swagger-ui.initializer", get(swaggerUi + "/swagger-initializer.js", ""));
+        routes.put("get.metrics", get("/metrics", ""));
+        return routes;
+    }
+
+    private static String get(String path, String headers) {
+        return "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n" + headers + "\r\n";
+    }
+
+    private static long bytesPerRequest(LocalConnector connector, String request) throws Exception {
+        send(connector, request, WARMUP_REQUESTS);
+        var before = serverThreadAllocations();
+        send(connector, request, MEASURED_REQUESTS);
+        var after = serverThreadAllocations();
+        long total = 0;
+        for (var thread : after.entrySet())
+            total += thread.getValue() - before.getOrDefault(thread.getKey(), 0L);
+        return total / MEASURED_REQUESTS;
+    }
+
+    private static void send(LocalConnector connector, String request, int times) throws Exception {
+        for (int i = 0; i < times; ++i) {
+            String response = connector.getResponse(request);
+            if (response == null || !response.startsWith("HTTP/1.1 2"))
+                throw new IllegalStateException("request failed: " + request.lines().findFirst().orElse("")
+                        + " -> " + (response == null ? "no response" : response.lines().findFirst().orElse("")));
+        }
+    }
+
+    /**
+     * @return bytes allocated so far by each of Jetty's threads, by thread id
+     */
+    private static Map<Long, Long> serverThreadAllocations() {
+        var threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var allocations = new HashMap<Long, Long>();
+        for (var thread : Thread.getAllStackTraces().keySet()) {
+            // the pool createServer makes is called jetty
+            if (thread.getName().startsWith("jetty-"))
+                allocations.put(thread.getId(), threads.getThreadAllocatedBytes(thread.getId()));
+        }
+        return allocations;
+    }
+
+    private static Properties read(Path file) throws IOException {
+        var budgets = new Properties();
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            budgets.load(in);
+        } catch (NoSuchFileException e) {
+            // every route will be reported as having no budget
+        }
+        return budgets;
+    }
+
+    private static void write(Path file, Map<String, Long> budgets) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("# Bytes allocated per request, by route - checked by AllocationBudgets.\n");
+            out.write("# Regenerate with: AllocationBudgets " + file.getFileName() + " --record\n");
+            for (var budget : budgets.entrySet())
+                out.write(budget.getKey() + "=" + budget.getValue() + "\n");
+        }
+    }
+}
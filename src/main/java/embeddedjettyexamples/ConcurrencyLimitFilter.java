@@ -0,0 +1,275 @@
+package embeddedjettyexamples;
+
+import static jakarta.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.glassfish.jersey.uri.UriTemplate;
+
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Adaptive concurrency limit per endpoint. When the database slows down,
+ * latency goes up, the limit comes down and the excess is turned away with a
+ * 503 straight away - rather than queuing until every client times out.
+ * <p>
+ * The limit follows the gradient between the long-term average latency and
+ * the latest request's latency (roughly Netflix's Gradient2): while they agree
+ * the limit creeps up, and when requests start taking longer than usual it
+ * shrinks in proportion. An endpoint is a method and a route - the servlet
+ * pattern the request matched, or a template registered with
+ * {@link #routes(String, Collection)}. Each endpoint's state is published over JMX as
+ * embeddedjettyexamples:type=ConcurrencyLimit,endpoint=...
+ */
+public class ConcurrencyLimitFilter implements Filter {
+    private static final Logger logger = Logger.getLogger(ConcurrencyLimitFilter.class.getName());
+
+    // endpoints are routes, not paths, so there are only ever a few - but don't
+    // let a mistake there create them without bound
+    private static final int MAX_ENDPOINTS = 64;
+    private static final String OTHER_ENDPOINT = "other";
+    // the method comes from the client too - anything else is one endpoint
+    private static final Set<String> METHODS = Set.of("GET", "HEAD", "POST", "PUT", "DELETE", "PATCH", "OPTIONS");
+    private static final String OTHER_METHOD = "OTHER";
+
+    public interface EndpointLimitMXBean {
+        String getEndpoint();
+
+        int getLimit();
+
+        int getInFlight();
+
+        long getAccepted();
+
+        long getRejected();
+
+        double getAverageLatencyMillis();
+    }
+
+    public static class EndpointLimit implements EndpointLimitMXBean {
+        private static final double SMOOTHING = 0.2;
+        // samples in the long-term latency average
+        private static final double LONG_WINDOW = 600;
+
+        private final String endpoint;
+        private final int minLimit;
+        private final int maxLimit;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong accepted = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private volatile int limit;
+
+        // guarded by this
+        private double estimatedLimit;
+        private double longRttNanos;
+
+        EndpointLimit(String endpoint, int initialLimit, int minLimit, int maxLimit) {
+            this.endpoint = endpoint;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.estimatedLimit = initialLimit;
+            this.limit = initialLimit;
+        }
+
+        /**
+         * @return in-flight count at the time of acquiring, or -1 if we're at the
+         *         limit
+         */
+        int tryAcquire() {
+            int current = inFlight.incrementAndGet();
+            if (current > limit) {
+                inFlight.decrementAndGet();
+                rejected.incrementAndGet();
+                return -1;
+            }
+            accepted.incrementAndGet();
+            return current;
+        }
+
+        void release() {
+            inFlight.decrementAndGet();
+        }
+
+        synchronized void sample(long rttNanos, int inFlightAtStart) {
+            if (longRttNanos == 0)
+                longRttNanos = rttNanos;
+            else
+                longRttNanos += (rttNanos - longRttNanos) / LONG_WINDOW;
+
+            // after a long overload the average itself is inflated, and we'd never
+            // notice we were still overloaded - so pull it back toward the present
+            if (longRttNanos > 2 * rttNanos)
+                longRttNanos *= 0.95;
+
+            // no evidence we can handle more if we weren't near the limit
+            if (inFlightAtStart < estimatedLimit / 2)
+                return;
+
+            double gradient = Math.max(0.5, Math.min(1.0, longRttNanos / rttNanos));
+            double queueSize = Math.sqrt(estimatedLimit);
+            double newLimit = estimatedLimit * gradient + queueSize;
+            newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+            estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+            limit = (int) estimatedLimit;
+        }
+
+        @Override
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        @Override
+        public int getLimit() {
+            return limit;
+        }
+
+        @Override
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        @Override
+        public long getAccepted() {
+            return accepted.get();
+        }
+
+        @Override
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        @Override
+        public synchronized double getAverageLatencyMillis() {
+            return longRttNanos / 1e6;
+        }
+    }
+
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final ConcurrentHashMap<String, EndpointLimit> endpoints = new ConcurrentHashMap<>();
+    // path templates under a servlet that routes for itself, by servlet pattern
+    private final Map<String, List<UriTemplate>> routes = new HashMap<>();
+
+    /**
+     * @param maxLimit there's no point going past the number of request threads
+     */
+    public ConcurrencyLimitFilter(int initialLimit, int minLimit, int maxLimit) {
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Tell apart the routes of a servlet mapped to a wildcard pattern, such as
+     * Jersey's. Without this, everything it serves shares one limit.
+     *
+     * @param templates JAX-RS style path templates, relative to the servlet
+     */
+    public ConcurrencyLimitFilter routes(String servletPattern, Collection<String> templates) {
+        routes.put(servletPattern, templates.stream().map(UriTemplate::new).toList());
+        return this;
+    }
+
+    public Iterable<EndpointLimit> endpoints() {
+        return endpoints.values();
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        var httpRequest = (HttpServletRequest) request;
+        String method = METHODS.contains(httpRequest.getMethod()) ? httpRequest.getMethod() : OTHER_METHOD;
+        var limit = endpointLimit(method + " " + route(httpRequest));
+        int inFlight = limit.tryAcquire();
+        if (inFlight < 0) {
+            var httpResponse = (HttpServletResponse) response;
+            httpResponse.setStatus(SERVICE_UNAVAILABLE.getStatusCode());
+            httpResponse.setHeader("Retry-After", "1");
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            limit.release();
+            // async requests (the event stream) hold no thread and their latency
+            // means nothing, so they only count while they're being set up
+            if (!request.isAsyncStarted())
+                limit.sample(System.nanoTime() - start, inFlight);
+        }
+    }
+
+    /**
+     * What the request matched, rather than its path - paths come from the
+     * client, and path parameters make one route many paths.
+     */
+    private String route(HttpServletRequest request) {
+        String pattern = request.getHttpServletMapping().getPattern();
+        var templates = routes.get(pattern);
+        String pathInfo = request.getPathInfo();
+        if (templates != null && pathInfo != null)
+            for (var template : templates)
+                if (template.match(pathInfo, new ArrayList<>()))
+                    return request.getServletPath() + template.getTemplate();
+        return pattern;
+    }
+
+    private EndpointLimit endpointLimit(String endpoint) {
+        var limit = endpoints.get(endpoint);
+        if (limit != null)
+            return limit;
+        if (endpoints.size() >= MAX_ENDPOINTS)
+            endpoint = OTHER_ENDPOINT;
+        return endpoints.computeIfAbsent(endpoint, this::register);
+    }
+
+    private static ObjectName objectName(String endpoint) throws JMException {
+        return new ObjectName("embeddedjettyexamples:type=ConcurrencyLimit,endpoint=" + ObjectName.quote(endpoint));
+    }
+
+    private EndpointLimit register(String endpoint) {
+        var limit = new EndpointLimit(endpoint, initialLimit, minLimit, maxLimit);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(limit, objectName(endpoint));
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "couldn't publish concurrency limit for " + endpoint, e);
+        }
+        return limit;
+    }
+
+    // a server started after this one (see Warmup) publishes its own limits
+    // under the same names
+    @Override
+    public void destroy() {
+        for (var endpoint : endpoints.keySet()) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(endpoint));
+            } catch (JMException e) {
+                logger.log(Level.FINE, "concurrency limit for " + endpoint + " wasn't published", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package embeddedjettyexamples;
+
+import static jakarta.ws.rs.core.Response.Status.BAD_REQUEST;
+import static jakarta.ws.rs.core.Response.Status.CONFLICT;
+import static jakarta.ws.rs.core.Response.Status.FORBIDDEN;
+import static jakarta.ws.rs.core.Response.Status.NOT_FOUND;
+import static jakarta.ws.rs.core.Response.Status.UNAUTHORIZED;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.logging.Logger;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * Start, stop and download a Java Flight Recorder recording, so we don't have
+ * to attach to production by hand. Only one recording at a time.
+ * <ul>
+ * <li>POST /jfr/start?settings=profile&amp;maxAgeSeconds=600 - settings is a
+ * JDK configuration name, "default" (the default) or "profile"
+ * <li>POST /jfr/stop
+ * <li>GET /jfr/recording - the stopped recording, or a snapshot of the running
+ * one
+ * </ul>
+ * Every call needs "Authorization: Bearer &lt;adminToken&gt;". Without a token
+ * configured, the endpoint refuses everything.
+ */
+public class FlightRecorderServlet extends HttpServlet {
+    private static final Logger logger = Logger.getLogger(FlightRecorderServlet.class.getName());
+
+    private final byte[] adminToken;
+    private Recording recording;
+
+    /**
+     * @param adminToken null to disable
+     */
+    public FlightRecorderServlet(String adminToken) {
+        this.adminToken = adminToken == null ? null : adminToken.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private boolean authorized(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (adminToken == null) {
+            resp.sendError(FORBIDDEN.getStatusCode(), "no admin token configured");
+            return false;
+        }
+        String authorization = req.getHeader("Authorization");
+        // constant time, so the comparison doesn't leak how much of a guess was right
+        if (authorization == null || !authorization.startsWith("Bearer ") || !MessageDigest.isEqual(adminToken,
+                authorization.substring("Bearer ".length()).getBytes(StandardCharsets.UTF_8))) {
+            resp.setHeader("WWW-Authenticate", "Bearer");
+            resp.sendError(UNAUTHORIZED.getStatusCode());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if (!authorized(req, resp))
+            return;
+        String action = req.getPathInfo();
+        if ("/start".equals(action))
+            start(req, resp);
+        else if ("/stop".equals(action))
+            stop(resp);
+        else
+            resp.sendError(NOT_FOUND.getStatusCode());
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if (!authorized(req, resp))
+            return;
+        if (!"/recording".equals(req.getPathInfo())) {
+            resp.sendError(NOT_FOUND.getStatusCode());
+            return;
+        }
+        download(resp);
+    }
+
+    private synchronized void start(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (recording != null && recording.getState() == RecordingState.RUNNING) {
+            resp.sendError(CONFLICT.getStatusCode(), "already recording");
+            return;
+        }
+        Configuration configuration;
+        Duration maxAge;
+        try {
+            String settings = req.getParameter("settings");
+            configuration = Configuration.getConfiguration(settings == null ? "default" : settings);
+            String maxAgeSeconds = req.getParameter("maxAgeSeconds");
+            maxAge = Duration.ofSeconds(maxAgeSeconds == null ? 600 : Long.parseLong(maxAgeSeconds));
+        } catch (ParseException | IOException | NumberFormatException e) {
+            resp.sendError(BAD_REQUEST.getStatusCode(), e.getMessage());
+            return;
+        }
+
+        if (recording != null)
+            recording.close();
+        recording = new Recording(configuration);
+        recording.setName("admin-" + Instant.now());
+        // keep a window rather than everything, so forgetting to stop is harmless
+        recording.setToDisk(true);
+        recording.setMaxAge(maxAge);
+        recording.start();
+        logger.info("started flight recording " + recording.getName() + " with " + configuration.getName()
+                + " settings");
+        resp.getWriter().write("recording " + recording.getName() + "\n");
+    }
+
+    private synchronized void stop(HttpServletResponse resp) throws IOException {
+        if (recording == null || recording.getState() != RecordingState.RUNNING) {
+            resp.sendError(CONFLICT.getStatusCode(), "not recording");
+            return;
+        }
+        recording.stop();
+        logger.info("stopped flight recording " + recording.getName());
+        resp.getWriter().write("stopped " + recording.getName() + "\n");
+    }
+
+    private void download(HttpServletResponse resp) throws IOException {
+        Recording snapshot;
+        synchronized (this) {
+            if (recording == null) {
+                resp.sendError(NOT_FOUND.getStatusCode(), "nothing recorded");
+                return;
+            }
+            // a copy, so the download isn't affected if someone starts or stops
+            // recording meanwhile
+            snapshot = recording.copy(true);
+        }
+        try (snapshot; var in = snapshot.getStream(null, null)) {
+            if (in == null) {
+                resp.sendError(NOT_FOUND.getStatusCode(), "nothing recorded yet");
+                return;
+            }
+            resp.setContentType("application/octet-stream");
+            resp.setHeader("Content-Disposition", "attachment; filename=\"recording.jfr\"");
+            in.transferTo(resp.getOutputStream());
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package embeddedjettyexamples;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import embeddedjettyexamples.SimpleServer5WithLogging.UnshardedDatabase;
+
+/**
+ * Compare the default setup with -DlowFootprint: resident memory, classes
+ * loaded and time to the first answered request, each a median over several
+ * fresh JVMs.
+ * <p>
+ * Usage: FootprintBenchmark [runs] [jdbcUrl]
+ * <p>
+ * With a jdbcUrl, each JVM runs SimpleServer5WithLogging.main against that
+ * database, exactly as deployed. Without one, it runs the same server against
+ * the in-memory stand-in, which leaves out Flyway, Hikari and the driver, so
+ * only the server side is compared. Both profiles get the same heap limit;
+ * the low footprint one also gets the JVM flags below.
+ * <p>
+ * RSS comes from /proc, so this needs Linux; classes come from jcmd.
+ */
+public class FootprintBenchmark {
+    private static final List<String> COMMON_JVM_FLAGS = List.of("-Xmx128m");
+    // a small code cache and C1 only trade peak speed for memory - fine for
+    // lots of mostly-idle instances, not for a busy one
+    private static final List<String> LOW_FOOTPRINT_JVM_FLAGS = List.of("-DlowFootprint=true", "-XX:+UseSerialGC",
+            "-XX:TieredStopAtLevel=1", "-XX:ReservedCodeCacheSize=32m", "-Xss512k");
+
+    record Measurement(double firstRequestMillis, long rssKb, long classes) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        String jdbcUrl = args.length > 1 ? args[1] : null;
+
+        System.out.printf("%-14s %16s %10s %10s%n", "profile", "first request ms", "RSS MB", "classes");
+        for (boolean lowFootprint : new boolean[] { false, true }) {
+            var measurements = new ArrayList<Measurement>();
+            for (int run = 0; run < runs; ++run)
+                measurements.add(measure(lowFootprint, jdbcUrl));
+            System.out.printf("%-14s %16.0f %10.1f %10d%n", lowFootprint ? "low footprint" : "default",
+                    median(measurements.stream().mapToDouble(Measurement::firstRequestMillis).toArray()),
+                    median(measurements.stream().mapToDouble(Measurement::rssKb).toArray()) / 1024,
+                    (long) median(measurements.stream().mapToDouble(Measurement::classes).toArray()));
+        }
+    }
+
+    private static Measurement measure(boolean lowFootprint, String jdbcUrl) throws Exception {
+        int port = freePort();
+        var command = new ArrayList<String>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(COMMON_JVM_FLAGS);
+        if (lowFootprint)
+            command.addAll(LOW_FOOTPRINT_JVM_FLAGS);
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), "-Dport=" + port,
+                "-DadminPort=" + freePort()));
+        if (jdbcUrl != null) {
+            command.add("-DgreetingShards=" + jdbcUrl);
+            command.add(SimpleServer5WithLogging.class.getName());
+        } else {
+            command.add(StandIn.class.getName());
+        }
+
+        var client = HttpClient.newHttpClient();
+        var request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/hello"))
+                .timeout(Duration.ofSeconds(5)).build();
+        long start = System.nanoTime();
+        var process = new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        try {
+            double firstRequestMillis;
+            while (true) {
+                if (!process.isAlive())
+                    throw new IllegalStateException("server exited with " + process.exitValue());
+                try {
+                    if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                        firstRequestMillis = (System.nanoTime() - start) / 1e6;
+                        break;
+                    }
+                } catch (IOException e) {
+                    // not listening yet
+                }
+                Thread.sleep(5);
+            }
+            // let startup's stragglers finish before measuring
+            Thread.sleep(2000);
+            return new Measurement(firstRequestMillis, rssKb(process.pid()), loadedClasses(process.pid()));
+        } finally {
+            process.destroy();
+            process.waitFor(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static long rssKb(long pid) throws IOException {
+        for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status")))
+            if (line.startsWith("VmRSS:"))
+                return Long.parseLong(line.replaceAll("[^0-9]", ""));
+        throw new IllegalStateException("no VmRSS for " + pid);
+    }
+
+    /**
+     * Loaded less unloaded, counting classes from the shared archive too.
+     */
+    private static long loadedClasses(long pid) throws Exception {
+        var jcmd = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "jcmd").toString(),
+                Long.toString(pid), "PerfCounter.print").start();
+        long classes = 0;
+        for (String line : new String(jcmd.getInputStream().readAllBytes()).split("\n")) {
+            String[] counter = line.trim().split("=");
+            if (counter.length != 2)
+                continue;
+            switch (counter[0]) {
+            case "java.cls.loadedClasses", "java.cls.sharedLoadedClasses" -> classes += Long.parseLong(counter[1]);
+            case "java.cls.unloadedClasses", "java.cls.sharedUnloadedClasses" -> classes -= Long.parseLong(counter[1]);
+            default -> {
+            }
+            }
+        }
+        jcmd.waitFor();
+        return classes;
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static double median(double[] values) {
+        Arrays.sort(values);
+        return values[values.length / 2];
+    }
+
+    /**
+     * SimpleServer5WithLogging.main, minus the database.
+     */
+    public static class StandIn {
+        public static void main(String[] args) throws Exception {
+            SimpleServer5WithLogging.configureLogging();
+            var greetingEvents = new GreetingEvents();
+            var greetings = new InMemoryGreetings(greetingEvents);
+            var database = new UnshardedDatabase(greetings);
+            greetings.watcher = database;
+            database.listening();
+            var server = SimpleServer5WithLogging.createServer(database, greetingEvents, null, new MetricsServlet());
+            server.start();
+            server.join();
+        }
+    }
+}
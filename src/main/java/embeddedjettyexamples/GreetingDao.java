@@ -0,0 +1,150 @@
+package embeddedjettyexamples;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import org.jdbi.v3.core.mapper.RowMapper;
+import org.jdbi.v3.core.statement.NoTemplateEngine;
+import org.jdbi.v3.core.statement.StatementContext;
+import org.jdbi.v3.sqlobject.config.RegisterRowMapper;
+import org.jdbi.v3.sqlobject.config.UseTemplateEngine;
+import org.jdbi.v3.sqlobject.customizer.Bind;
+import org.jdbi.v3.sqlobject.statement.BatchChunkSize;
+import org.jdbi.v3.sqlobject.statement.GetGeneratedKeys;
+import org.jdbi.v3.sqlobject.statement.SqlBatch;
+import org.jdbi.v3.sqlobject.statement.SqlQuery;
+import org.jdbi.v3.sqlobject.statement.SqlUpdate;
+import org.jdbi.v3.sqlobject.transaction.Transaction;
+
+import embeddedjettyexamples.GreetingSpool.SpooledGreeting;
+import embeddedjettyexamples.SimpleServer5WithLogging.VersionedGreeting;
+
+/**
+ * All of the greetings SQL in one place. Jdbi builds each method's statement
+ * once, when the DAO is created, rather than on every call. None of these
+ * statements use &lt;defines&gt;, so there's no template rendering either, and
+ * because the SQL text never changes, the Postgres driver reuses its server-side
+ * prepared statements per connection.
+ * <p>
+ * Needs the SqlObjectPlugin installed, and is meant to be used with
+ * {@link org.jdbi.v3.core.Jdbi#onDemand(Class)}.
+ */
+@UseTemplateEngine(NoTemplateEngine.class)
+@RegisterRowMapper(GreetingDao.VersionedGreetingMapper.class)
+public interface GreetingDao {
+    record AddedGreeting(VersionedGreeting greeting, Instant added) {
+    }
+
+    /**
+     * The highest version - the same order Database's cache moves forward in, so
+     * a fresh read and the cache agree on which greeting is the latest even when
+     * two inserts commit in a different order than they were stamped.
+     */
+    @SqlQuery("select version, greeting from greetings order by version desc limit 1")
+    Optional<VersionedGreeting> latest();
+
+    /**
+     * With when it was added, to pick the latest of several shards' latest -
+     * versions from different shards don't say which came first.
+     */
+    @SqlQuery("select version, greeting, added from greetings order by added desc limit 1")
+    @RegisterRowMapper(AddedGreetingMapper.class)
+    Optional<AddedGreeting> latestAdded();
+
+    /**
+     * Newest first. For the next page, pass the last version of this one.
+     */
+    @SqlQuery("select version, greeting from greetings where version < :before order by version desc limit :limit")
+    List<VersionedGreeting> page(@Bind("before") long beforeVersion, @Bind("limit") int limit);
+
+    @SqlUpdate("insert into greetings (greeting, added) values (:greeting, current_timestamp)")
+    @GetGeneratedKeys("version")
+    long insert(@Bind("greeting") String greeting);
+
+    /**
+     * One round trip per chunk instead of one per greeting.
+     */
+    @SqlBatch("insert into greetings (greeting, added) values (:greeting, current_timestamp)")
+    @BatchChunkSize(1000)
+    @GetGeneratedKeys("version")
+    long[] insertAll(@Bind("greeting") List<String> greetings);
+
+    // pg_notify returns void, which comes back as a null String
+    @SqlQuery("select pg_notify(:channel, :payload)")
+    String notify(@Bind("channel") String channel, @Bind("payload") String payload);
+
+    /**
+     * Insert and tell the other instances. The notification is only delivered if
+     * the insert commits.
+     */
+    @Transaction
+    default long add(String greeting) {
+        long version = insert(greeting);
+        notify(GreetingEvents.CHANNEL, GreetingEvents.payload(version, greeting));
+        return version;
+    }
+
+    /**
+     * Like {@link #add(String)}, for many greetings. Subscribers only care about
+     * the latest, so only the last one is announced.
+     */
+    @Transaction
+    default long[] addAll(List<String> greetings) {
+        long[] versions = insertAll(greetings);
+        if (versions.length > 0)
+            notify(GreetingEvents.CHANNEL,
+                    GreetingEvents.payload(versions[versions.length - 1], greetings.get(greetings.size() - 1)));
+        return versions;
+    }
+
+    /**
+     * Remember that these spooled greetings have been added.
+     *
+     * @return the ids that weren't already remembered
+     */
+    @SqlQuery("insert into spooled_greetings (spool_id) select unnest(:ids) on conflict do nothing returning spool_id")
+    List<UUID> markSpooled(@Bind("ids") UUID[] ids);
+
+    @SqlUpdate("delete from spooled_greetings where applied < :before")
+    int pruneSpooled(@Bind("before") Instant before);
+
+    /**
+     * Like {@link #addAll(List)}, skipping greetings a replay of the spool has
+     * already added. Both happen in one transaction, so a greeting is never
+     * marked without being added, or the other way round.
+     *
+     * @return the greetings that were added, in order
+     */
+    @Transaction
+    default List<VersionedGreeting> addSpooled(List<SpooledGreeting> spooled) {
+        Set<UUID> fresh = Set.copyOf(markSpooled(spooled.stream().map(SpooledGreeting::id).toArray(UUID[]::new)));
+        List<String> greetings = spooled.stream().filter(greeting -> fresh.contains(greeting.id()))
+                .map(SpooledGreeting::greeting).toList();
+        if (greetings.isEmpty())
+            return List.of();
+        long[] versions = addAll(greetings);
+        return IntStream.range(0, versions.length)
+                .mapToObj(i -> new VersionedGreeting(versions[i], greetings.get(i))).toList();
+    }
+
+    public static class VersionedGreetingMapper implements RowMapper<VersionedGreeting> {
+        @Override
+        public VersionedGreeting map(ResultSet rs, StatementContext ctx) throws SQLException {
+            return new VersionedGreeting(rs.getLong("version"), rs.getString("greeting"));
+        }
+    }
+
+    public static class AddedGreetingMapper implements RowMapper<AddedGreeting> {
+        @Override
+        public AddedGreeting map(ResultSet rs, StatementContext ctx) throws SQLException {
+            return new AddedGreeting(new VersionedGreeting(rs.getLong("version"), rs.getString("greeting")),
+                    rs.getTimestamp("added").toInstant());
+        }
+    }
+}
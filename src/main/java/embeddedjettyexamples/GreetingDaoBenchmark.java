@@ -0,0 +1,96 @@
+package embeddedjettyexamples;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import org.flywaydb.core.Flyway;
+import org.jdbi.v3.core.Jdbi;
+import org.jdbi.v3.sqlobject.SqlObjectPlugin;
+import org.postgresql.ds.PGSimpleDataSource;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import embeddedjettyexamples.SimpleServer5WithLogging.VersionedGreeting;
+
+/**
+ * Compare building statements on every call, the way Database used to, with
+ * {@link GreetingDao}: the latest-greeting read, and inserting greetings one
+ * statement at a time against one batch.
+ * <p>
+ * Usage: GreetingDaoBenchmark [database] [user] [password]
+ * <p>
+ * Adds a few hundred thousand greetings to the database, so use a scratch one.
+ */
+public class GreetingDaoBenchmark {
+    private static final int READS = 20_000;
+    private static final int INSERTS = 5_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        var dataSource = new PGSimpleDataSource();
+        dataSource.setServerNames(new String[] { "localhost" });
+        dataSource.setDatabaseName(args.length > 0 ? args[0] : "jetty_bench");
+        dataSource.setUser(args.length > 1 ? args[1] : "jetty2");
+        dataSource.setPassword(args.length > 2 ? args[2] : "jetty2");
+        var hikariConfig = new HikariConfig();
+        hikariConfig.setDataSource(dataSource);
+
+        try (var hikariDataSource = new HikariDataSource(hikariConfig)) {
+            Flyway.configure().dataSource(hikariDataSource).load().migrate();
+            var jdbi = Jdbi.create(hikariDataSource).installPlugin(new SqlObjectPlugin());
+            var dao = jdbi.onDemand(GreetingDao.class);
+            dao.insert("benchmark");
+
+            var greetings = new ArrayList<String>();
+            for (int i = 0; i < INSERTS; ++i)
+                greetings.add("benchmark " + i);
+
+            // the first rounds are warmup, for the JIT and the driver's
+            // prepared statement cache
+            System.out.printf("%-28s %12s %12s%n", "", "per call", "dao");
+            for (int round = 0; round < ROUNDS; ++round) {
+                report("latest greeting, us/op", READS, () -> time(READS, () -> latestPerCall(jdbi)),
+                        () -> time(READS, () -> dao.latest().get().version()));
+                report("insert " + INSERTS + ", us/greeting", INSERTS, () -> time(1, () -> insertPerCall(jdbi, greetings)),
+                        () -> time(1, () -> dao.insertAll(greetings).length));
+            }
+        }
+    }
+
+    private static long latestPerCall(Jdbi jdbi) {
+        return jdbi.withHandle(h -> {
+            return h.select("select version, greeting from greetings order by version desc limit 1")
+                    .map((rs, ctx) -> new VersionedGreeting(rs.getLong("version"), rs.getString("greeting")))
+                    .findOne();
+        }).get().version();
+    }
+
+    private static long insertPerCall(Jdbi jdbi, List<String> greetings) {
+        long last = 0;
+        for (var greeting : greetings)
+            last = jdbi.withHandle(h -> h
+                    .createQuery(
+                            "insert into greetings (greeting, added) values (?, current_timestamp) returning version")
+                    .bind(0, greeting).mapTo(Long.class).one());
+        return last;
+    }
+
+    private static long time(int iterations, LongSupplier operation) {
+        long blackhole = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i)
+            blackhole += operation.getAsLong();
+        long elapsed = System.nanoTime() - start;
+        // keeps the results live, so none of the work can be optimized away
+        if (blackhole == 42)
+            System.out.print("");
+        return elapsed;
+    }
+
+    private static void report(String name, int operations, LongSupplier perCall, LongSupplier dao) {
+        System.out.printf("%-28s %12.1f %12.1f%n", name, perCall.getAsLong() / 1e3 / operations,
+                dao.getAsLong() / 1e3 / operations);
+    }
+}
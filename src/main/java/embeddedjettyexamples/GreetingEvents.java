@@ -0,0 +1,325 @@
+package embeddedjettyexamples;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Server-sent events for greeting changes.
+ * <p>
+ * New greetings arrive through a single Postgres LISTEN connection, so every
+ * instance of the server sees every insert, and are pushed to all open
+ * streams. Streams are async servlet requests written with non-blocking I/O -
+ * an idle stream holds no thread, and a slow client never blocks the fan-out.
+ * Jersey's SseEventSink would have been the obvious choice, but on a servlet
+ * container it writes through the blocking output stream, so one stalled
+ * client would stall every broadcast behind it.
+ * <p>
+ * Since a greeting replaces the previous one, each stream only ever holds the
+ * latest event it hasn't sent yet. A slow client skips intermediate greetings
+ * instead of buffering them.
+ */
+public class GreetingEvents {
+    public static final String CHANNEL = "greetings";
+
+    private static final Logger logger = Logger.getLogger(GreetingEvents.class.getName());
+    private static final int MAX_PAYLOAD_BYTES = 8000;
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] STREAM_START = "retry: 5000\n\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Told what the listener hears, so that it can keep a cache of the latest
+     * greeting honest.
+     */
+    public interface Watcher {
+        /** We're now LISTENing and won't miss any greeting added from now on */
+        void listening();
+
+        /** We've lost the connection and may miss greetings until listening() */
+        void notListening();
+
+        void greetingAdded(long version, String greeting);
+    }
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private volatile byte[] latest;
+
+    public int subscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * @return the NOTIFY payload for a greeting: its version and the greeting,
+     *         or only the version when the greeting is too long to go with it
+     *         (Postgres refuses payloads of 8000 bytes or more), and listeners
+     *         read it from the table
+     */
+    public static String payload(long version, String greeting) {
+        String payload = version + " " + greeting;
+        // no char takes more than 3 bytes in UTF-8, so most greetings fit without
+        // encoding them to find out
+        if (payload.length() * 3 < MAX_PAYLOAD_BYTES
+                || payload.getBytes(StandardCharsets.UTF_8).length < MAX_PAYLOAD_BYTES)
+            return payload;
+        return Long.toString(version);
+    }
+
+    /**
+     * Send greeting to every open stream.
+     */
+    public void publish(long version, String greeting) {
+        var event = toEvent(version, greeting);
+        latest = event;
+        for (var subscriber : subscribers)
+            subscriber.offer(event);
+    }
+
+    /**
+     * Send a comment to streams that have nothing else queued, so that proxies
+     * and Jetty's idle timeout don't close quiet streams.
+     */
+    public void heartbeat() {
+        for (var subscriber : subscribers)
+            subscriber.offerIfIdle(HEARTBEAT);
+    }
+
+    static byte[] toEvent(long version, String greeting) {
+        var event = new StringBuilder(greeting.length() + 48).append("id: ").append(version)
+                .append("\nevent: greeting\n");
+        // a newline in the data would end the field, so each line gets its own
+        for (String line : greeting.split("\r\n|\r|\n", -1))
+            event.append("data: ").append(line).append('\n');
+        return event.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public HttpServlet servlet() {
+        return new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                    throws ServletException, IOException {
+                resp.setContentType("text/event-stream");
+                resp.setCharacterEncoding("UTF-8");
+                resp.setHeader("Cache-Control", "no-cache");
+
+                var asyncContext = req.startAsync();
+                // the stream lives until the client goes away
+                asyncContext.setTimeout(0);
+                var current = latest;
+                var subscriber = new Subscriber(asyncContext, resp.getOutputStream(),
+                        current == null ? STREAM_START : concat(STREAM_START, current));
+                asyncContext.addListener(subscriber);
+                subscribers.add(subscriber);
+                subscriber.out.setWriteListener(subscriber);
+            }
+        };
+    }
+
+    /**
+     * One open stream. All writes are non-blocking: we only write when the
+     * output stream says it's ready, and otherwise leave the event pending for
+     * onWritePossible.
+     */
+    private class Subscriber implements WriteListener, AsyncListener {
+        private final AsyncContext asyncContext;
+        private final ServletOutputStream out;
+        private final AtomicReference<byte[]> pending = new AtomicReference<>();
+        private boolean listening;
+        private boolean unflushed;
+        private boolean closed;
+
+        Subscriber(AsyncContext asyncContext, ServletOutputStream out, byte[] first) {
+            this.asyncContext = asyncContext;
+            this.out = out;
+            pending.set(first);
+        }
+
+        void offer(byte[] event) {
+            pending.set(event);
+            write();
+        }
+
+        void offerIfIdle(byte[] event) {
+            if (pending.compareAndSet(null, event))
+                write();
+        }
+
+        @Override
+        public synchronized void onWritePossible() throws IOException {
+            listening = true;
+            write();
+        }
+
+        private synchronized void write() {
+            // until the write listener is installed, isReady() isn't ours to call
+            if (!listening || closed)
+                return;
+            try {
+                while (out.isReady()) {
+                    if (unflushed) {
+                        unflushed = false;
+                        out.flush();
+                        continue;
+                    }
+                    var next = pending.getAndSet(null);
+                    if (next == null)
+                        return;
+                    out.write(next);
+                    unflushed = true;
+                }
+            } catch (IOException | IllegalStateException e) {
+                close();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            close();
+        }
+
+        private synchronized void close() {
+            if (closed)
+                return;
+            closed = true;
+            subscribers.remove(this);
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                // already completed by the container
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            subscribers.remove(this);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    /**
+     * Pass one notification on. Anyone can NOTIFY on the channel, so a payload
+     * we can't make sense of - or a watcher or subscriber that throws - costs
+     * that one notification, not the listener.
+     */
+    private void dispatch(String payload, Watcher watcher, Connection connection) throws SQLException {
+        try {
+            int space = payload.indexOf(' ');
+            long version = Long.parseLong(space < 0 ? payload : payload.substring(0, space));
+            String greeting = space < 0 ? readGreeting(connection, version) : payload.substring(space + 1);
+            if (greeting == null) {
+                logger.fine("greeting " + version + " has gone before we could read it");
+                return;
+            }
+            watcher.greetingAdded(version, greeting);
+            publish(version, greeting);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "skipping greeting notification: "
+                    + (payload.length() > 100 ? payload.substring(0, 100) + "..." : payload), e);
+        }
+    }
+
+    // a greeting too long for its notification
+    private static String readGreeting(Connection connection, long version) throws SQLException {
+        try (var statement = connection.prepareStatement("select greeting from greetings where version = ?")) {
+            statement.setLong(1, version);
+            try (var row = statement.executeQuery()) {
+                return row.next() ? row.getString(1) : null;
+            }
+        }
+    }
+
+    /**
+     * The one thread that LISTENs for new greetings. It uses its own connection
+     * rather than one from the pool, since it holds it forever, and reconnects
+     * if the database goes away.
+     */
+    public Thread startListener(DataSource dataSource, Watcher watcher) {
+        var thread = new Thread(() -> listen(dataSource, watcher), "greeting-listener");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void listen(DataSource dataSource, Watcher watcher) {
+        try {
+            listenUntilInterrupted(dataSource, watcher);
+        } finally {
+            // however we got here, nothing is telling the watcher about changes now
+            watcher.notListening();
+        }
+    }
+
+    private void listenUntilInterrupted(DataSource dataSource, Watcher watcher) {
+        long heartbeatMillis = TimeUnit.SECONDS.toMillis(15);
+        while (!Thread.currentThread().isInterrupted()) {
+            try (Connection connection = dataSource.getConnection()) {
+                try (var statement = connection.createStatement()) {
+                    statement.execute("listen " + CHANNEL);
+                }
+                var pgConnection = connection.unwrap(PGConnection.class);
+                watcher.listening();
+                long nextHeartbeat = System.currentTimeMillis() + heartbeatMillis;
+                while (!Thread.currentThread().isInterrupted()) {
+                    var notifications = pgConnection
+                            .getNotifications((int) Math.max(1, nextHeartbeat - System.currentTimeMillis()));
+                    if (notifications != null)
+                        for (var notification : notifications)
+                            dispatch(notification.getParameter(), watcher, connection);
+                    if (System.currentTimeMillis() >= nextHeartbeat) {
+                        heartbeat();
+                        nextHeartbeat = System.currentTimeMillis() + heartbeatMillis;
+                    }
+                }
+            } catch (SQLException e) {
+                watcher.notListening();
+                logger.log(Level.WARNING, "greeting listener lost its connection, retrying", e);
+                heartbeat();
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+}
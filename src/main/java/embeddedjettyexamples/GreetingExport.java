@@ -0,0 +1,261 @@
+package embeddedjettyexamples;
+
+import static jakarta.ws.rs.core.Response.Status.NOT_MODIFIED;
+import static jakarta.ws.rs.core.Response.Status.PARTIAL_CONTENT;
+import static jakarta.ws.rs.core.Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE;
+import static jakarta.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.server.InclusiveByteRange;
+import org.postgresql.PGConnection;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * A CSV snapshot of the whole greetings table, for analysts who want all of it.
+ * <p>
+ * {@link #refresh()} (run it on a schedule) has Postgres COPY the table
+ * straight into a file - no rows are mapped, and nothing but the driver's
+ * buffer is on the heap. The file is then memory mapped, and {@link #servlet()}
+ * hands those mapped buffers to Jetty, which writes them to the socket from
+ * the page cache without copying them into the heap first. Downloads can be
+ * resumed with Range requests, and the ETag is the snapshot's generation, so a
+ * client can tell when there's a newer one.
+ * <p>
+ * With several shards, the snapshot is each shard's greetings in turn, in
+ * version order within each shard.
+ */
+public class GreetingExport {
+    private static final Logger logger = Logger.getLogger(GreetingExport.class.getName());
+    private static final String COPY = "copy (select version, greeting, added from greetings order by version) "
+            + "to stdout with (format csv, header %s)";
+    // a MappedByteBuffer can't be more than 2GB
+    private static final long MAX_REGION = 1L << 30;
+
+    /**
+     * @param generation when the snapshot was started, in epoch millis
+     * @param regions    the whole file, mapped a region at a time
+     */
+    private record Snapshot(long generation, Path file, long size, List<ByteBuffer> regions) {
+        String etag() {
+            return "\"greetings-" + generation + "\"";
+        }
+    }
+
+    private final List<? extends DataSource> dataSources;
+    private final Path directory;
+    private volatile Snapshot current;
+
+    /**
+     * @param dataSources each shard's - ideally not the api's pool, since a COPY
+     *                    of a big table holds its connection for a while
+     */
+    public GreetingExport(List<? extends DataSource> dataSources, Path directory) throws IOException {
+        this.dataSources = List.copyOf(dataSources);
+        this.directory = directory;
+        Files.createDirectories(directory);
+        // left behind by an earlier run
+        try (var files = Files.newDirectoryStream(directory, "greetings-*.csv*")) {
+            for (var file : files)
+                Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Take a new snapshot and start serving it. If that fails the old one stays,
+     * so this is safe to schedule - it never throws.
+     */
+    public void refresh() {
+        long generation = System.currentTimeMillis();
+        var file = directory.resolve("greetings-" + generation + ".csv");
+        var partial = directory.resolve(file.getFileName() + ".partial");
+        try {
+            try (var out = new BufferedOutputStream(Files.newOutputStream(partial), 64 * 1024)) {
+                boolean header = true;
+                for (var dataSource : dataSources) {
+                    try (var connection = dataSource.getConnection()) {
+                        connection.unwrap(PGConnection.class).getCopyAPI()
+                                .copyOut(String.format(COPY, header), out);
+                    }
+                    header = false;
+                }
+            }
+            Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE);
+            var snapshot = map(generation, file);
+            var previous = current;
+            current = snapshot;
+            logger.info("exported " + snapshot.size() + " bytes of greetings to " + file);
+            // downloads still sending it keep their mapping - the space is freed
+            // once they're done
+            if (previous != null)
+                Files.deleteIfExists(previous.file());
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "greetings export failed, still serving the last one", e);
+            try {
+                Files.deleteIfExists(partial);
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static Snapshot map(long generation, Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            var regions = new ArrayList<ByteBuffer>();
+            for (long position = 0; position < size; position += MAX_REGION)
+                regions.add(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_REGION, size - position)));
+            return new Snapshot(generation, file, size, regions);
+        }
+    }
+
+    /**
+     * @return how old the snapshot being served is, or -1 if there isn't one yet
+     */
+    public double ageSeconds() {
+        var snapshot = current;
+        return snapshot == null ? -1 : (System.currentTimeMillis() - snapshot.generation()) / 1000.0;
+    }
+
+    public HttpServlet servlet() {
+        return new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                    throws ServletException, IOException {
+                var snapshot = current;
+                if (snapshot == null) {
+                    resp.setHeader("Retry-After", "60");
+                    resp.sendError(SERVICE_UNAVAILABLE.getStatusCode(), "no export yet");
+                    return;
+                }
+                String etag = snapshot.etag();
+                resp.setHeader("ETag", etag);
+                resp.setHeader("Accept-Ranges", "bytes");
+                // always worth asking whether there's a newer snapshot
+                resp.setHeader("Cache-Control", "no-cache");
+                if (matches(req.getHeader("If-None-Match"), etag)) {
+                    resp.setStatus(NOT_MODIFIED.getStatusCode());
+                    return;
+                }
+                resp.setContentType("text/csv;charset=utf-8");
+                resp.setHeader("Content-Disposition", "attachment; filename=\"greetings.csv\"");
+
+                long start = 0;
+                long length = snapshot.size();
+                // a Range only applies to the snapshot it was asked of - If-Range
+                // says which that was. Several ranges at once aren't worth the
+                // multipart body, and it's fine to send the whole thing instead
+                String ifRange = req.getHeader("If-Range");
+                if (req.getHeader("Range") != null && (ifRange == null || ifRange.equals(etag))) {
+                    var ranges = InclusiveByteRange.satisfiableRanges(req.getHeaders("Range"), snapshot.size());
+                    if (ranges == null || ranges.isEmpty()) {
+                        resp.setHeader("Content-Range", InclusiveByteRange.to416HeaderRangeString(snapshot.size()));
+                        resp.setStatus(REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode());
+                        return;
+                    }
+                    if (ranges.size() == 1) {
+                        var range = ranges.get(0);
+                        start = range.getFirst();
+                        length = range.getSize();
+                        resp.setStatus(PARTIAL_CONTENT.getStatusCode());
+                        resp.setHeader("Content-Range", range.toHeaderRangeString(snapshot.size()));
+                    }
+                }
+                resp.setContentLengthLong(length);
+                if (length == 0)
+                    return;
+
+                var asyncContext = req.startAsync();
+                // no deadline on the whole download - a multi-gigabyte snapshot over a
+                // slow link would outlast any sensible one. A stalled download keeps its
+                // snapshot's mapping alive until the connection is dropped as idle
+                asyncContext.setTimeout(0);
+                var out = resp.getOutputStream();
+                out.setWriteListener(new RegionWriter(asyncContext, out, slices(snapshot, start, length)));
+            }
+        };
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null)
+            return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * The mapped regions covering length bytes from start. Each is a view of
+     * its own, so concurrent downloads don't disturb each other's positions.
+     */
+    private static List<ByteBuffer> slices(Snapshot snapshot, long start, long length) {
+        var slices = new ArrayList<ByteBuffer>();
+        long end = start + length;
+        for (int i = (int) (start / MAX_REGION); i < snapshot.regions().size() && i * MAX_REGION < end; ++i) {
+            long regionStart = i * MAX_REGION;
+            var region = snapshot.regions().get(i);
+            int from = (int) Math.max(0, start - regionStart);
+            int to = (int) Math.min(region.capacity(), end - regionStart);
+            slices.add(region.duplicate().position(from).limit(to).slice());
+        }
+        return slices;
+    }
+
+    /**
+     * Writes each mapped slice as the client takes it. Jetty's output stream
+     * takes a ByteBuffer whole - a big one isn't copied into its aggregation
+     * buffer, it goes straight to the socket.
+     */
+    private static class RegionWriter implements WriteListener {
+        private final AsyncContext asyncContext;
+        private final ServletOutputStream out;
+        private final Iterator<ByteBuffer> slices;
+
+        RegionWriter(AsyncContext asyncContext, ServletOutputStream out, List<ByteBuffer> slices) {
+            this.asyncContext = asyncContext;
+            this.out = out;
+            this.slices = slices.iterator();
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            while (out.isReady()) {
+                if (!slices.hasNext()) {
+                    asyncContext.complete();
+                    return;
+                }
+                ((HttpOutput) out).write(slices.next());
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            asyncContext.complete();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package embeddedjettyexamples;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Monthly range partitions of the greetings table on added. One partition per
+ * month (plus greetings_historic for anything older than the first month), so
+ * expiring old greetings is a drop table instead of a huge delete. The latest
+ * greeting is the highest version, and version isn't the partition key, so
+ * that query reads the top of every partition's version index: its cost grows
+ * with the number of months kept, not the number of rows - one more reason to
+ * set a retention period.
+ */
+public class GreetingPartitions {
+    private static final Logger logger = Logger.getLogger(GreetingPartitions.class.getName());
+
+    static String partitionName(YearMonth month) {
+        return String.format("greetings_y%04dm%02d", month.getYear(), month.getMonthValue());
+    }
+
+    private static String monthStart(YearMonth month) {
+        return "'" + month.atDay(1).atStartOfDay().atOffset(ZoneOffset.UTC) + "'";
+    }
+
+    public static boolean isPartitioned(Connection connection, String table) throws SQLException {
+        try (var select = connection
+                .prepareStatement("select relkind = 'p' from pg_class where relname = ? and relkind in ('r', 'p')")) {
+            select.setString(1, table);
+            try (var row = select.executeQuery()) {
+                return row.next() && row.getBoolean(1);
+            }
+        }
+    }
+
+    /**
+     * Create a partition of parent for each month from first to last,
+     * inclusive, if it doesn't already exist.
+     */
+    public static void createMonthlyPartitions(Connection connection, String parent, YearMonth first,
+            YearMonth last) throws SQLException {
+        for (var month = first; !month.isAfter(last); month = month.plusMonths(1))
+            execute(connection, "create table if not exists " + partitionName(month) + " partition of " + parent
+                    + " for values from (" + monthStart(month) + ") to (" + monthStart(month.plusMonths(1)) + ")");
+    }
+
+    /**
+     * Create the partition for everything before the first monthly partition,
+     * including greetings that were never given an added time.
+     */
+    public static void createHistoricPartition(Connection connection, String parent, YearMonth firstMonth)
+            throws SQLException {
+        execute(connection, "create table if not exists greetings_historic partition of " + parent
+                + " for values from (minvalue) to (" + monthStart(firstMonth) + ")");
+    }
+
+    /**
+     * Drop partitions of parent that only hold greetings older than retention.
+     *
+     * @return the number of partitions dropped
+     */
+    public static int dropExpiredPartitions(Connection connection, String parent, Duration retention)
+            throws SQLException {
+        var expired = new ArrayList<String>();
+        try (var select = connection.prepareStatement("select c.relname from pg_inherits i"
+                + " join pg_class c on c.oid = i.inhrelid where i.inhparent = ?::regclass"
+                + " and (regexp_match(pg_get_expr(c.relpartbound, c.oid), 'TO \\(''([^'']+)''\\)'))[1]::timestamptz"
+                + " <= current_timestamp - ? * interval '1 second'")) {
+            select.setString(1, parent);
+            select.setLong(2, retention.toSeconds());
+            try (var rows = select.executeQuery()) {
+                while (rows.next())
+                    expired.add(rows.getString(1));
+            }
+        }
+        for (String partition : expired) {
+            // dropping a partition briefly locks the whole table. Don't sit in the
+            // lock queue in front of everyone's inserts - we'll try again next time
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                execute(connection, "set local lock_timeout = '2s'");
+                execute(connection, "drop table " + partition);
+                connection.commit();
+                logger.info("dropped expired greetings partition " + partition);
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+        return expired.size();
+    }
+
+    /**
+     * Keeps monthsAhead months of partitions ready, and drops expired ones if
+     * there's a retention period. Does nothing until the table is partitioned,
+     * in case migrations are still running.
+     *
+     * @param retention null to keep greetings forever
+     */
+    public static Runnable maintenanceJob(DataSource dataSource, int monthsAhead, Duration retention) {
+        return () -> {
+            try (var connection = dataSource.getConnection()) {
+                if (!isPartitioned(connection, "greetings"))
+                    return;
+                var now = YearMonth.now(ZoneOffset.UTC);
+                createMonthlyPartitions(connection, "greetings", now, now.plusMonths(monthsAhead));
+                if (retention != null)
+                    dropExpiredPartitions(connection, "greetings", retention);
+            } catch (SQLException e) {
+                // a scheduled task that throws is never run again
+                logger.log(Level.WARNING, "greetings partition maintenance failed", e);
+            }
+        };
+    }
+
+    private static void execute(Connection connection, String sql) throws SQLException {
+        try (var statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package embeddedjettyexamples;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import embeddedjettyexamples.SimpleServer5WithLogging.Database;
+
+/**
+ * Write-behind for new greetings: a POST only waits for its greeting to be on
+ * local disk, and a background drainer gets it into the database later, in
+ * batches. Slow queries or an exhausted pool then slow the drainer, not the
+ * clients.
+ * <p>
+ * Greetings are appended to numbered segment files. One writer thread takes
+ * everything that's queued up, writes it at once and fsyncs once for the lot,
+ * so under load many appends share each fsync. The drainer reads from where
+ * it last got to (the checkpoint file), adds a batch, moves the checkpoint on,
+ * and deletes segments it has finished with.
+ * <p>
+ * Each greeting carries an id, and the database remembers the ids it has added
+ * (spooled_greetings), so a batch added just before a crash - but not yet
+ * checkpointed - is skipped when the spool is replayed on startup. A write cut
+ * off by a crash is only ever at the end of the last segment; it was never
+ * acknowledged, so it's cut off there.
+ */
+public class GreetingSpool {
+    private static final Logger logger = Logger.getLogger(GreetingSpool.class.getName());
+    private static final long SEGMENT_BYTES = 64 << 20;
+    private static final int DRAIN_BATCH = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    // length and checksum, ahead of each record
+    private static final int RECORD_HEADER = 8;
+
+    public record SpooledGreeting(UUID id, String key, String greeting) {
+    }
+
+    private record Position(long segment, long offset) {
+    }
+
+    private record Append(byte[] record, CompletableFuture<Void> durable) {
+    }
+
+    private final Path directory;
+    private final Database database;
+    private final LinkedBlockingQueue<Append> appends = new LinkedBlockingQueue<>();
+
+    // written only by the writer thread
+    private FileChannel segment;
+    private long segmentNumber;
+    // how far the writer has fsynced; the drainer never reads past it
+    private volatile Position durable;
+    // where the drainer has got to, as in the checkpoint file
+    private Position drained;
+    // the last record the drainer quarantined, so a batch read again isn't counted twice
+    private Position lastQuarantined = new Position(0, -1);
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong drainedCount = new AtomicLong();
+    private final AtomicLong drainFailures = new AtomicLong();
+    private final AtomicLong quarantined = new AtomicLong();
+    private final long pendingAtStart;
+
+    /**
+     * Recover whatever an earlier run left in the directory, then start the
+     * writer and drainer threads. The drainer adds greetings with
+     * {@link Database#addSpooledGreetings(List)}.
+     */
+    public GreetingSpool(Path directory, Database database) throws IOException {
+        this.directory = directory;
+        this.database = database;
+        Files.createDirectories(directory);
+
+        var segments = segments();
+        drained = readCheckpoint(segments);
+        long pending = 0;
+        for (long number : segments) {
+            if (number < drained.segment())
+                Files.delete(segmentFile(number));
+            else
+                pending += recover(number, number == drained.segment() ? drained.offset() : 0);
+        }
+        pendingAtStart = pending;
+        if (pending > 0)
+            logger.info("replaying " + pending + " spooled greetings");
+
+        // a fresh segment, so nothing is ever appended after a cut-off record
+        segmentNumber = segments.isEmpty() ? Math.max(1, drained.segment()) : segments.get(segments.size() - 1) + 1;
+        segment = openSegment(segmentNumber);
+        durable = new Position(segmentNumber, 0);
+
+        start("greeting-spool-writer", this::write);
+        start("greeting-spool-drainer", this::drain);
+    }
+
+    private static void start(String name, Runnable loop) {
+        var thread = new Thread(loop, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns once the greeting is on disk.
+     *
+     * @param key what the greeting belongs to, as for
+     *            {@link Database#addGreeting(String, String)}
+     */
+    public void append(String key, String greeting) throws IOException {
+        var append = new Append(encode(new SpooledGreeting(UUID.randomUUID(), key, greeting)),
+                new CompletableFuture<>());
+        appends.add(append);
+        try {
+            append.durable().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for the spool", e);
+        } catch (ExecutionException e) {
+            throw new IOException("couldn't spool greeting", e.getCause());
+        }
+        appended.incrementAndGet();
+    }
+
+    /**
+     * @return greetings on disk but not yet in the database
+     */
+    public long depth() {
+        // never below zero, should a greeting we counted as failed turn up anyway
+        return Math.max(0, pendingAtStart + appended.get() - drainedCount.get() - quarantined.get());
+    }
+
+    public long appended() {
+        return appended.get();
+    }
+
+    public long drained() {
+        return drainedCount.get();
+    }
+
+    public long drainFailures() {
+        return drainFailures.get();
+    }
+
+    /**
+     * @return records that couldn't be read, and were moved to the quarantine
+     *         directory instead of being added
+     */
+    public long quarantined() {
+        return quarantined.get();
+    }
+
+    // the writer thread: one write and one fsync for everything queued
+    private void write() {
+        var batch = new ArrayList<Append>();
+        while (true) {
+            // where the segment ended before this batch
+            long before = -1;
+            try {
+                batch.add(appends.take());
+                appends.drainTo(batch);
+                if (segment.size() >= SEGMENT_BYTES) {
+                    segment.close();
+                    segment = openSegment(++segmentNumber);
+                }
+                before = segment.size();
+                var buffers = batch.stream().map(append -> ByteBuffer.wrap(append.record()))
+                        .toArray(ByteBuffer[]::new);
+                long remaining = 0;
+                for (var buffer : buffers)
+                    remaining += buffer.remaining();
+                while (remaining > 0)
+                    remaining -= segment.write(buffers);
+                segment.force(false);
+                durable = new Position(segmentNumber, segment.size());
+                synchronized (this) {
+                    notifyAll();
+                }
+                batch.forEach(append -> append.durable().complete(null));
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.SEVERE, "couldn't write to the greeting spool", e);
+                batch.forEach(append -> append.durable().completeExceptionally(e));
+                // the callers have been told these greetings failed, so take back
+                // whatever of them was written. Failing that, carry on in a new segment;
+                // the drainer stops at the partial record left behind
+                try {
+                    if (before < 0)
+                        throw new IOException("segment size unknown");
+                    segment.truncate(before);
+                    segment.force(false);
+                } catch (IOException truncate) {
+                    try {
+                        segment.close();
+                        segment = openSegment(++segmentNumber);
+                    } catch (IOException reopen) {
+                        logger.log(Level.SEVERE, "couldn't start a new greeting spool segment", reopen);
+                    }
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    // the drainer thread
+    private void drain() {
+        long backoff = 100;
+        while (true) {
+            try {
+                var until = durable;
+                var read = new ArrayList<SpooledGreeting>();
+                var next = read(drained, until, read);
+                if (read.isEmpty()) {
+                    if (!next.equals(drained)) {
+                        // only quarantined records
+                        checkpoint(next);
+                        continue;
+                    }
+                    if (next.segment() < until.segment()) {
+                        // finished with that segment, and there's a newer one
+                        checkpoint(new Position(next.segment() + 1, 0));
+                        continue;
+                    }
+                    synchronized (this) {
+                        if (durable.equals(until))
+                            wait(1000);
+                    }
+                    continue;
+                }
+                database.addSpooledGreetings(read);
+                drainedCount.addAndGet(read.size());
+                checkpoint(next);
+                backoff = 100;
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                // the database is down or struggling - the greetings are safe on disk,
+                // so back off and try the same batch again
+                drainFailures.incrementAndGet();
+                logger.log(Level.WARNING, "couldn't drain greeting spool, retrying in " + backoff + "ms", e);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Read up to a batch of greetings from one segment, starting at from and not
+     * past until.
+     *
+     * @return where the next read should start
+     */
+    private Position read(Position from, Position until, List<SpooledGreeting> into) throws IOException {
+        var file = segmentFile(from.segment());
+        if (!Files.exists(file))
+            return from;
+        boolean live = from.segment() == until.segment();
+        long end = live ? until.offset() : Files.size(file);
+        long offset = from.offset();
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(RECORD_HEADER);
+            while (offset + RECORD_HEADER <= end && into.size() < DRAIN_BATCH) {
+                header.clear();
+                readFully(channel, header, offset);
+                int length = header.getInt(0);
+                if (length < 0 || offset + RECORD_HEADER + length > end) {
+                    // in an older segment, the rest of a write that failed. In the one
+                    // being written, everything up to end was fsynced, so the length
+                    // itself is damaged and there's no finding the next record
+                    if (live) {
+                        quarantine(channel, from.segment(), offset, end - offset);
+                        offset = end;
+                    }
+                    break;
+                }
+                var payload = ByteBuffer.allocate(length);
+                readFully(channel, payload, offset + RECORD_HEADER);
+                try {
+                    into.add(decode(payload.array(), header.getInt(4)));
+                } catch (IOException e) {
+                    // one bad record mustn't hold up the rest forever
+                    quarantine(channel, from.segment(), offset, RECORD_HEADER + length);
+                }
+                offset += RECORD_HEADER + length;
+            }
+        }
+        return new Position(from.segment(), offset);
+    }
+
+    /**
+     * Copy length bytes from offset out of the segment, where they won't be read
+     * again but can still be looked at.
+     */
+    private void quarantine(FileChannel channel, long segment, long offset, long length) throws IOException {
+        var quarantine = Files.createDirectories(directory.resolve("quarantine"));
+        var file = quarantine.resolve(String.format("greetings-%016d-%d.bad", segment, offset));
+        try (var out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long copied = 0;
+            while (copied < length)
+                copied += channel.transferTo(offset + copied, length - copied, out);
+            out.force(true);
+        }
+        if (segment > lastQuarantined.segment()
+                || segment == lastQuarantined.segment() && offset > lastQuarantined.offset()) {
+            lastQuarantined = new Position(segment, offset);
+            quarantined.incrementAndGet();
+        }
+        logger.severe("greeting spool record is unreadable, moved " + length + " bytes to " + file);
+    }
+
+    /**
+     * Check a segment left by an earlier run, cutting off a record that was
+     * being written when it stopped. A damaged record with more after it is
+     * left for the drainer to quarantine.
+     *
+     * @return how many records there are after from
+     */
+    private long recover(long number, long from) throws IOException {
+        var file = segmentFile(number);
+        long count = 0;
+        long offset = 0;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            var header = ByteBuffer.allocate(RECORD_HEADER);
+            while (offset + RECORD_HEADER <= size) {
+                header.clear();
+                readFully(channel, header, offset);
+                int length = header.getInt(0);
+                if (length < 0 || offset + RECORD_HEADER + length > size)
+                    break;
+                var payload = ByteBuffer.allocate(length);
+                readFully(channel, payload, offset + RECORD_HEADER);
+                if (checksum(payload.array()) != header.getInt(4) && offset + RECORD_HEADER + length == size)
+                    break;
+                if (offset >= from)
+                    ++count;
+                offset += RECORD_HEADER + length;
+            }
+            if (offset < size) {
+                logger.warning("cutting off " + (size - offset) + " bytes of unfinished write from " + file);
+                channel.truncate(offset);
+                channel.force(true);
+            }
+        }
+        return count;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new IOException("greeting spool ends mid-record");
+        }
+    }
+
+    private void checkpoint(Position position) throws IOException {
+        var temporary = directory.resolve("checkpoint.tmp");
+        try (var out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            var bytes = ByteBuffer.wrap((position.segment() + " " + position.offset()).getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining())
+                out.write(bytes);
+            // on disk before the rename can be, or a crash could leave an empty
+            // checkpoint
+            out.force(true);
+        }
+        Files.move(temporary, directory.resolve("checkpoint"), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        // segments before the checkpoint are all in the database
+        for (long number = drained.segment(); number < position.segment(); ++number)
+            Files.deleteIfExists(segmentFile(number));
+        drained = position;
+    }
+
+    private Position readCheckpoint(List<Long> segments) throws IOException {
+        var file = directory.resolve("checkpoint");
+        if (Files.exists(file)) {
+            try {
+                String[] checkpoint = Files.readString(file).trim().split(" ");
+                return new Position(Long.parseLong(checkpoint[0]), Long.parseLong(checkpoint[1]));
+            } catch (IOException | RuntimeException e) {
+                // replaying is harmless - the database skips what it already has
+                logger.log(Level.WARNING, "greeting spool checkpoint is unreadable, replaying the whole spool", e);
+            }
+        }
+        return new Position(segments.isEmpty() ? 1 : segments.get(0), 0);
+    }
+
+    private List<Long> segments() throws IOException {
+        var numbers = new ArrayList<Long>();
+        try (var files = Files.newDirectoryStream(directory, "greetings-*.spool")) {
+            for (var file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring("greetings-".length(), name.length() - ".spool".length())));
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+
+    private Path segmentFile(long number) {
+        return directory.resolve(String.format("greetings-%016d.spool", number));
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        var channel = FileChannel.open(segmentFile(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        // make the new file's directory entry durable too
+        syncDirectory();
+        return channel;
+    }
+
+    private void syncDirectory() {
+        try (var directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (IOException e) {
+            // not every platform lets us open a directory
+        }
+    }
+
+    // length, checksum, then id, key (if any) and greeting
+    private static byte[] encode(SpooledGreeting greeting) throws IOException {
+        var payload = new ByteArrayOutputStream();
+        var out = new DataOutputStream(payload);
+        out.writeLong(greeting.id().getMostSignificantBits());
+        out.writeLong(greeting.id().getLeastSignificantBits());
+        out.writeBoolean(greeting.key() != null);
+        if (greeting.key() != null)
+            out.writeUTF(greeting.key());
+        out.write(greeting.greeting().getBytes(StandardCharsets.UTF_8));
+        byte[] bytes = payload.toByteArray();
+        return ByteBuffer.allocate(RECORD_HEADER + bytes.length).putInt(bytes.length).putInt(checksum(bytes))
+                .put(bytes).array();
+    }
+
+    private static SpooledGreeting decode(byte[] payload, int checksum) throws IOException {
+        if (checksum(payload) != checksum)
+            throw new IOException("greeting spool record is corrupt");
+        var in = new DataInputStream(new ByteArrayInputStream(payload));
+        var id = new UUID(in.readLong(), in.readLong());
+        String key = in.readBoolean() ? in.readUTF() : null;
+        String greeting = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        return new SpooledGreeting(id, key, greeting);
+    }
+
+    private static int checksum(byte[] bytes) {
+        var crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,86 @@
+package embeddedjettyexamples;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import embeddedjettyexamples.GreetingDao.AddedGreeting;
+import embeddedjettyexamples.SimpleServer5WithLogging.VersionedGreeting;
+
+/**
+ * Just enough of the greetings table, for SoakTest and Warmup. Only the newest
+ * few are kept, so that a long run's storage doesn't look like a leak.
+ * Notifications go straight to the watcher and subscribers, as the LISTEN
+ * thread would pass them on.
+ */
+class InMemoryGreetings implements GreetingDao {
+    private static final int KEEP = 1000;
+
+    private final ConcurrentSkipListMap<Long, AddedGreeting> greetings = new ConcurrentSkipListMap<>();
+    private final AtomicLong versions = new AtomicLong();
+    private final Set<UUID> spooled = ConcurrentHashMap.newKeySet();
+    private final GreetingEvents events;
+    volatile GreetingEvents.Watcher watcher;
+
+    InMemoryGreetings(GreetingEvents events) {
+        this.events = events;
+    }
+
+    @Override
+    public Optional<VersionedGreeting> latest() {
+        return latestAdded().map(AddedGreeting::greeting);
+    }
+
+    @Override
+    public Optional<AddedGreeting> latestAdded() {
+        var latest = greetings.lastEntry();
+        return latest == null ? Optional.empty() : Optional.of(latest.getValue());
+    }
+
+    @Override
+    public List<VersionedGreeting> page(long beforeVersion, int limit) {
+        return greetings.headMap(beforeVersion).descendingMap().entrySet().stream().limit(limit)
+                .map(entry -> entry.getValue().greeting()).toList();
+    }
+
+    @Override
+    public long insert(String greeting) {
+        long version = versions.incrementAndGet();
+        greetings.put(version, new AddedGreeting(new VersionedGreeting(version, greeting), Instant.now()));
+        greetings.remove(version - KEEP);
+        return version;
+    }
+
+    @Override
+    public long[] insertAll(List<String> greetings) {
+        return greetings.stream().mapToLong(this::insert).toArray();
+    }
+
+    @Override
+    public String notify(String channel, String payload) {
+        int space = payload.indexOf(' ');
+        long version = Long.parseLong(space < 0 ? payload : payload.substring(0, space));
+        // only the version, for a long greeting - the listener would read the rest
+        String greeting = space < 0 ? greetings.get(version).greeting().greeting() : payload.substring(space + 1);
+        if (watcher != null)
+            watcher.greetingAdded(version, greeting);
+        events.publish(version, greeting);
+        return null;
+    }
+
+    @Override
+    public List<UUID> markSpooled(UUID[] ids) {
+        return List.of(ids).stream().filter(spooled::add).toList();
+    }
+
+    @Override
+    public int pruneSpooled(Instant before) {
+        // nothing's timestamped, and a stand-in doesn't live long enough to matter
+        return 0;
+    }
+}
@@ -0,0 +1,139 @@
+package embeddedjettyexamples;
+
+import java.io.IOException;
+
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerRequestFilter;
+import jakarta.ws.rs.container.ContainerResponseContext;
+import jakarta.ws.rs.container.ContainerResponseFilter;
+import jakarta.ws.rs.container.ResourceInfo;
+import jakarta.ws.rs.core.Context;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Our own Flight Recorder events, so a recording shows where a request's time
+ * went next to the JVM's own GC, lock and I/O events. Each carries the request's
+ * trace id, to match it up with the access log.
+ * <p>
+ * While nothing is recording, an event's begin/end/shouldCommit are close to
+ * free and the event object itself is usually optimized away, so these stay in
+ * the code permanently. Fields are only filled in once we know the event will
+ * be committed.
+ */
+public class JfrEvents {
+    static String traceId() {
+        var timings = RequestTimings.current();
+        return timings == null ? null : timings.traceId;
+    }
+
+    @Name("embeddedjettyexamples.Cors")
+    @Label("CORS Check")
+    @Category({ "Embedded Jetty Examples" })
+    @StackTrace(false)
+    public static class CorsEvent extends Event {
+        @Label("Trace Id")
+        public String traceId;
+
+        @Label("Origin")
+        public String origin;
+
+        @Label("Allowed")
+        public boolean allowed;
+    }
+
+    @Name("embeddedjettyexamples.ResourceMethod")
+    @Label("Resource Method")
+    @Description("Jersey request handling, from resource matching to the response filters")
+    @Category({ "Embedded Jetty Examples" })
+    @StackTrace(false)
+    public static class ResourceMethodEvent extends Event {
+        @Label("Trace Id")
+        public String traceId;
+
+        @Label("HTTP Method")
+        public String httpMethod;
+
+        @Label("Path")
+        public String path;
+
+        @Label("Resource Method")
+        public String resourceMethod;
+
+        @Label("Status")
+        public int status;
+    }
+
+    @Name("embeddedjettyexamples.Sql")
+    @Label("SQL Statement")
+    @Category({ "Embedded Jetty Examples" })
+    @StackTrace(false)
+    public static class SqlEvent extends Event {
+        @Label("Trace Id")
+        public String traceId;
+
+        @Label("SQL")
+        public String sql;
+
+        @Label("Connection Acquire Time")
+        @Description("Time this request has spent waiting for pool connections so far")
+        @Timespan(Timespan.NANOSECONDS)
+        public long connectionAcquireTime;
+
+        @Label("Failed")
+        public boolean failed;
+    }
+
+    @Name("embeddedjettyexamples.ConnectionAcquire")
+    @Label("Connection Acquire")
+    @Description("Waiting for a connection from the Hikari pool")
+    @Category({ "Embedded Jetty Examples" })
+    @StackTrace(false)
+    public static class ConnectionAcquireEvent extends Event {
+        @Label("Trace Id")
+        public String traceId;
+    }
+
+    /**
+     * Wraps Jersey's handling of each request in a {@link ResourceMethodEvent}.
+     */
+    public static class ResourceMethodFilter implements ContainerRequestFilter, ContainerResponseFilter {
+        private static final String PROPERTY = ResourceMethodEvent.class.getName();
+
+        @Context
+        private ResourceInfo resourceInfo;
+
+        @Override
+        public void filter(ContainerRequestContext requestContext) throws IOException {
+            var event = new ResourceMethodEvent();
+            if (!event.isEnabled())
+                return;
+            event.begin();
+            requestContext.setProperty(PROPERTY, event);
+        }
+
+        @Override
+        public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+                throws IOException {
+            var event = (ResourceMethodEvent) requestContext.getProperty(PROPERTY);
+            if (event == null)
+                return;
+            event.end();
+            if (event.shouldCommit()) {
+                event.traceId = traceId();
+                event.httpMethod = requestContext.getMethod();
+                event.path = requestContext.getUriInfo().getPath();
+                var method = resourceInfo.getResourceMethod();
+                if (method != null)
+                    event.resourceMethod = method.getDeclaringClass().getSimpleName() + "." + method.getName();
+                event.status = responseContext.getStatus();
+                event.commit();
+            }
+        }
+    }
+}
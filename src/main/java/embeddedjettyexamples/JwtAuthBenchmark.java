@@ -0,0 +1,111 @@
+package embeddedjettyexamples;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * How long JwtAuthFilter takes to accept a token, for each algorithm: the first
+ * time it sees a token (a miss - the signature is checked), and every time
+ * after (a hit - only the hash and time checks).
+ * <p>
+ * Usage: JwtAuthBenchmark [tokens]
+ * <p>
+ * Keys are generated fresh, and the public ones go through PEM files, as they
+ * would for the server.
+ */
+public class JwtAuthBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int HITS = 200_000;
+
+    public static void main(String[] args) throws Exception {
+        int tokens = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+
+        byte[] secret = "benchmark secret, at least 256 bits long".getBytes(StandardCharsets.UTF_8);
+        var rsaGenerator = KeyPairGenerator.getInstance("RSA");
+        rsaGenerator.initialize(2048);
+        KeyPair rsa = rsaGenerator.generateKeyPair();
+        var ecGenerator = KeyPairGenerator.getInstance("EC");
+        ecGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair ec = ecGenerator.generateKeyPair();
+
+        var keyDirectory = Files.createTempDirectory("jwt-keys");
+        writePem(keyDirectory.resolve("rsa.pem"), rsa);
+        writePem(keyDirectory.resolve("ec.pem"), ec);
+        var filter = new JwtAuthFilter(secret, keyDirectory, "benchmark", null);
+
+        System.out.printf("%-6s %12s %12s%n", "", "miss us", "hit us");
+        for (int round = 0; round < ROUNDS; ++round) {
+            // distinct tokens every round, so misses really are misses
+            report(filter, "HS256", sign(tokens, round, "HS256", null, input -> {
+                var mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+                return mac.doFinal(input);
+            }));
+            report(filter, "RS256", sign(tokens, round, "RS256", "rsa",
+                    input -> signWith("SHA256withRSA", rsa.getPrivate(), input)));
+            report(filter, "ES256", sign(tokens, round, "ES256", "ec",
+                    input -> signWith("SHA256withECDSAinP1363Format", ec.getPrivate(), input)));
+        }
+    }
+
+    interface Signer {
+        byte[] sign(byte[] input) throws Exception;
+    }
+
+    private static void report(JwtAuthFilter filter, String algorithm, List<String> tokens) throws Exception {
+        long start = System.nanoTime();
+        for (var token : tokens)
+            filter.authenticate(token);
+        long missNanos = (System.nanoTime() - start) / tokens.size();
+
+        // cycle through a few, as a handful of busy clients would
+        start = System.nanoTime();
+        for (int i = 0; i < HITS; ++i)
+            filter.authenticate(tokens.get(i & 15));
+        long hitNanos = (System.nanoTime() - start) / HITS;
+
+        System.out.printf("%-6s %12.2f %12.2f%n", algorithm, missNanos / 1e3, hitNanos / 1e3);
+    }
+
+    private static List<String> sign(int count, int round, String algorithm, String kid, Signer signer)
+            throws Exception {
+        var encoder = Base64.getUrlEncoder().withoutPadding();
+        String header = encoder.encodeToString(("{\"alg\":\"" + algorithm + "\",\"typ\":\"JWT\""
+                + (kid == null ? "" : ",\"kid\":\"" + kid + "\"") + "}").getBytes(StandardCharsets.UTF_8));
+        long expires = System.currentTimeMillis() / 1000 + 3600;
+        var tokens = new ArrayList<String>(count);
+        for (int i = 0; i < count; ++i) {
+            String claims = encoder.encodeToString(("{\"sub\":\"user" + i + "\",\"iss\":\"benchmark\",\"exp\":"
+                    + expires + ",\"jti\":\"" + round + "-" + i + "\"}").getBytes(StandardCharsets.UTF_8));
+            String signingInput = header + "." + claims;
+            tokens.add(signingInput + "."
+                    + encoder.encodeToString(signer.sign(signingInput.getBytes(StandardCharsets.US_ASCII))));
+        }
+        return tokens;
+    }
+
+    private static byte[] signWith(String algorithm, PrivateKey key, byte[] input) throws Exception {
+        var signature = Signature.getInstance(algorithm);
+        signature.initSign(key);
+        signature.update(input);
+        return signature.sign();
+    }
+
+    private static void writePem(Path file, KeyPair keyPair) throws Exception {
+        Files.writeString(file, "-----BEGIN PUBLIC KEY-----\n"
+                + Base64.getMimeEncoder().encodeToString(keyPair.getPublic().getEncoded())
+                + "\n-----END PUBLIC KEY-----\n");
+    }
+}
@@ -0,0 +1,351 @@
+package embeddedjettyexamples;
+
+import static jakarta.ws.rs.core.Response.Status.UNAUTHORIZED;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Principal;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Requires "Authorization: Bearer &lt;JWT&gt;" on the api. Tokens are verified
+ * here, against keys we already have - an HS256 shared secret, and RS256/ES256
+ * public keys from PEM files - so no request waits on the token issuer.
+ * <p>
+ * Clients send the same token on every call until it expires, and checking an
+ * RSA or EC signature takes far longer than the rest of a cached greeting read.
+ * So tokens that verified are remembered, by SHA-256 of the whole token, until
+ * they expire: a repeat costs a hash and the time checks. The cache is bounded,
+ * and holds hashes, not tokens.
+ * <p>
+ * RS256 and ES256 tokens need a kid: PEM files are named &lt;kid&gt;.pem. A
+ * token with a kid we haven't seen makes us look at the files again (at most
+ * every 30 seconds), so a new signing key can be published without a restart.
+ */
+public class JwtAuthFilter implements Filter {
+    private static final Logger logger = Logger.getLogger(JwtAuthFilter.class.getName());
+    private static final ObjectMapper json = new ObjectMapper();
+    private static final long CLOCK_SKEW_SECONDS = 30;
+    private static final long RELOAD_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int MAX_CACHED_TOKENS = 10_000;
+
+    public static class InvalidTokenException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidTokenException(String message) {
+            super(message);
+        }
+    }
+
+    public record VerifiedToken(String subject, long expiresAt, long notBefore) implements Principal {
+        @Override
+        public String getName() {
+            return subject;
+        }
+    }
+
+    record VerificationKey(String algorithm, Key key) {
+    }
+
+    private final Map<String, VerificationKey> configuredKeys = new HashMap<>();
+    private final Path keyFiles;
+    private final String issuer;
+    private final String audience;
+    private volatile Map<String, VerificationKey> keys;
+    private long nextReloadNanos;
+
+    private final Cache<ByteBuffer, VerifiedToken> verifiedTokens = Caffeine.newBuilder()
+            .maximumSize(MAX_CACHED_TOKENS).expireAfter(new Expiry<ByteBuffer, VerifiedToken>() {
+                @Override
+                public long expireAfterCreate(ByteBuffer hash, VerifiedToken token, long currentTime) {
+                    long seconds = token.expiresAt() + CLOCK_SKEW_SECONDS - System.currentTimeMillis() / 1000;
+                    return TimeUnit.SECONDS.toNanos(Math.max(0, seconds));
+                }
+
+                @Override
+                public long expireAfterUpdate(ByteBuffer hash, VerifiedToken token, long currentTime,
+                        long currentDuration) {
+                    return expireAfterCreate(hash, token, currentTime);
+                }
+
+                @Override
+                public long expireAfterRead(ByteBuffer hash, VerifiedToken token, long currentTime,
+                        long currentDuration) {
+                    return currentDuration;
+                }
+            }).recordStats().build();
+
+    /**
+     * @param hmacSecret for HS256 tokens without a kid, or null
+     * @param keyFiles   a PEM file, or a directory of them, or null
+     * @param issuer     required "iss", or null to accept any
+     * @param audience   required "aud", or null to accept any
+     */
+    public JwtAuthFilter(byte[] hmacSecret, Path keyFiles, String issuer, String audience) throws IOException {
+        if (hmacSecret != null)
+            configuredKeys.put(null, new VerificationKey("HS256", new SecretKeySpec(hmacSecret, "HmacSHA256")));
+        this.keyFiles = keyFiles;
+        this.issuer = issuer;
+        this.audience = audience;
+        this.keys = loadKeys();
+    }
+
+    public double cacheHitRatio() {
+        return verifiedTokens.stats().hitRate();
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        var httpRequest = (HttpServletRequest) request;
+        // CORS preflights never carry credentials
+        if ("OPTIONS".equals(httpRequest.getMethod())) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        long start = System.nanoTime();
+        String authorization = httpRequest.getHeader("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            RequestTimings.record(RequestTimings.Phase.AUTH, start);
+            unauthorized((HttpServletResponse) response, "Bearer");
+            return;
+        }
+        VerifiedToken token;
+        try {
+            token = authenticate(authorization.substring(7).trim());
+        } catch (InvalidTokenException e) {
+            logger.fine(() -> "rejected token: " + e.getMessage());
+            RequestTimings.record(RequestTimings.Phase.AUTH, start);
+            unauthorized((HttpServletResponse) response, "Bearer error=\"invalid_token\"");
+            return;
+        }
+        RequestTimings.record(RequestTimings.Phase.AUTH, start);
+
+        // so Jersey's SecurityContext sees who it is
+        chain.doFilter(new HttpServletRequestWrapper(httpRequest) {
+            @Override
+            public Principal getUserPrincipal() {
+                return token;
+            }
+
+            @Override
+            public String getRemoteUser() {
+                return token.subject();
+            }
+
+            @Override
+            public String getAuthType() {
+                return "Bearer";
+            }
+        }, response);
+    }
+
+    private static void unauthorized(HttpServletResponse response, String challenge) {
+        response.setStatus(UNAUTHORIZED.getStatusCode());
+        response.setHeader("WWW-Authenticate", challenge);
+    }
+
+    VerifiedToken authenticate(String token) throws InvalidTokenException {
+        var hash = ByteBuffer.wrap(sha256(token));
+        var verified = verifiedTokens.getIfPresent(hash);
+        if (verified == null) {
+            verified = verify(token);
+            verifiedTokens.put(hash, verified);
+        }
+        // checked on every use, cached or not
+        long now = System.currentTimeMillis() / 1000;
+        if (now > verified.expiresAt() + CLOCK_SKEW_SECONDS)
+            throw new InvalidTokenException("expired");
+        if (now < verified.notBefore() - CLOCK_SKEW_SECONDS)
+            throw new InvalidTokenException("not valid yet");
+        return verified;
+    }
+
+    private VerifiedToken verify(String token) throws InvalidTokenException {
+        int firstDot = token.indexOf('.');
+        int secondDot = token.indexOf('.', firstDot + 1);
+        if (firstDot < 0 || secondDot < 0 || token.indexOf('.', secondDot + 1) >= 0)
+            throw new InvalidTokenException("not a signed JWT");
+
+        JsonNode header = decodeJson(token.substring(0, firstDot));
+        String algorithm = header.path("alg").asText();
+        String kid = header.hasNonNull("kid") ? header.get("kid").asText() : null;
+        var key = findKey(kid);
+        // the token doesn't get to choose how it's checked - "alg": "none", or
+        // HS256 keyed with a public key, are the classic forgeries
+        if (key == null || !key.algorithm().equals(algorithm))
+            throw new InvalidTokenException("no " + algorithm + " key " + kid);
+
+        byte[] signingInput = token.substring(0, secondDot).getBytes(StandardCharsets.US_ASCII);
+        byte[] signature;
+        try {
+            signature = Base64.getUrlDecoder().decode(token.substring(secondDot + 1));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidTokenException("bad signature encoding");
+        }
+        if (!signatureMatches(key, signingInput, signature))
+            throw new InvalidTokenException("bad signature");
+
+        JsonNode claims = decodeJson(token.substring(firstDot + 1, secondDot));
+        if (!claims.path("exp").canConvertToLong())
+            throw new InvalidTokenException("no expiry");
+        if (issuer != null && !issuer.equals(claims.path("iss").asText(null)))
+            throw new InvalidTokenException("wrong issuer");
+        if (audience != null && !hasAudience(claims.path("aud")))
+            throw new InvalidTokenException("wrong audience");
+        return new VerifiedToken(claims.path("sub").asText(null), claims.get("exp").asLong(),
+                claims.path("nbf").asLong(0));
+    }
+
+    private boolean hasAudience(JsonNode aud) {
+        if (aud.isArray()) {
+            for (var entry : aud)
+                if (audience.equals(entry.asText()))
+                    return true;
+            return false;
+        }
+        return audience.equals(aud.asText(null));
+    }
+
+    private static boolean signatureMatches(VerificationKey key, byte[] signingInput, byte[] signature)
+            throws InvalidTokenException {
+        try {
+            switch (key.algorithm()) {
+            case "HS256":
+                var mac = Mac.getInstance("HmacSHA256");
+                mac.init(key.key());
+                return MessageDigest.isEqual(mac.doFinal(signingInput), signature);
+            case "RS256":
+                return verifySignature("SHA256withRSA", key, signingInput, signature);
+            case "ES256":
+                // JWS has the raw r and s, not the DER the JDK defaults to
+                return verifySignature("SHA256withECDSAinP1363Format", key, signingInput, signature);
+            default:
+                throw new InvalidTokenException("unsupported algorithm " + key.algorithm());
+            }
+        } catch (GeneralSecurityException e) {
+            throw new InvalidTokenException("signature check failed: " + e.getMessage());
+        }
+    }
+
+    private static boolean verifySignature(String algorithm, VerificationKey key, byte[] signingInput,
+            byte[] signature) throws GeneralSecurityException {
+        var verifier = Signature.getInstance(algorithm);
+        verifier.initVerify((PublicKey) key.key());
+        verifier.update(signingInput);
+        return verifier.verify(signature);
+    }
+
+    private static JsonNode decodeJson(String base64) throws InvalidTokenException {
+        try {
+            var node = json.readTree(Base64.getUrlDecoder().decode(base64));
+            if (node == null || !node.isObject())
+                throw new InvalidTokenException("not a JSON object");
+            return node;
+        } catch (IllegalArgumentException | IOException e) {
+            throw new InvalidTokenException("bad encoding");
+        }
+    }
+
+    private static byte[] sha256(String token) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.US_ASCII));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private VerificationKey findKey(String kid) {
+        var key = keys.get(kid);
+        if (key != null || keyFiles == null)
+            return key;
+        synchronized (this) {
+            if (System.nanoTime() - nextReloadNanos < 0)
+                return keys.get(kid);
+            try {
+                var reloaded = loadKeys();
+                // a key that's gone may have been compromised - stop trusting what
+                // it signed
+                if (!reloaded.equals(keys))
+                    verifiedTokens.invalidateAll();
+                keys = reloaded;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "couldn't reload JWT keys from " + keyFiles, e);
+            }
+            return keys.get(kid);
+        }
+    }
+
+    // caller holds the lock, or it's the constructor
+    private Map<String, VerificationKey> loadKeys() throws IOException {
+        nextReloadNanos = System.nanoTime() + RELOAD_INTERVAL_NANOS;
+        var loaded = new HashMap<>(configuredKeys);
+        if (keyFiles == null)
+            return loaded;
+        List<Path> pemFiles;
+        if (Files.isDirectory(keyFiles)) {
+            try (Stream<Path> files = Files.list(keyFiles)) {
+                pemFiles = files.filter(file -> file.getFileName().toString().endsWith(".pem")).toList();
+            }
+        } else {
+            pemFiles = List.of(keyFiles);
+        }
+        for (var file : pemFiles) {
+            String kid = file.getFileName().toString().replaceFirst("\\.pem$", "");
+            loaded.put(kid, readPublicKey(file));
+        }
+        return loaded;
+    }
+
+    private static VerificationKey readPublicKey(Path file) throws IOException {
+        String pem = Files.readString(file);
+        byte[] der = Base64.getMimeDecoder()
+                .decode(pem.replaceAll("-----(BEGIN|END) PUBLIC KEY-----", "").replaceAll("\\s", ""));
+        var spec = new X509EncodedKeySpec(der);
+        for (String[] type : new String[][] { { "RSA", "RS256" }, { "EC", "ES256" } }) {
+            try {
+                return new VerificationKey(type[1], KeyFactory.getInstance(type[0]).generatePublic(spec));
+            } catch (GeneralSecurityException e) {
+                // try the next type
+            }
+        }
+        throw new IOException(file + " isn't an RSA or EC public key");
+    }
+}
@@ -0,0 +1,107 @@
+package embeddedjettyexamples;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Gauges and counters in the Prometheus text format. Nothing is stored here -
+ * every scrape reads the current values from their sources.
+ */
+public class MetricsServlet extends HttpServlet {
+    public interface Source {
+        void writeTo(StringBuilder out);
+    }
+
+    private final List<Source> sources = new CopyOnWriteArrayList<>();
+
+    public MetricsServlet add(Source source) {
+        sources.add(source);
+        return this;
+    }
+
+    public MetricsServlet gauge(String name, Supplier<? extends Number> value) {
+        return add(out -> sample(out, name, null, value.get()));
+    }
+
+    /**
+     * How busy a route group's thread pool is. Saturation is threads doing
+     * request work plus queued jobs, against the threads that are available for
+     * request work (acceptors and selectors lease theirs for good) - anything
+     * over 1 is waiting.
+     */
+    public MetricsServlet threadPool(String group, QueuedThreadPool pool) {
+        String labels = label("group", group);
+        return add(out -> {
+            sample(out, "jetty_threads", labels, pool.getThreads());
+            sample(out, "jetty_threads_utilized", labels, pool.getUtilizedThreads());
+            sample(out, "jetty_threads_max", labels, pool.getMaxThreads());
+            sample(out, "jetty_queue_size", labels, pool.getQueueSize());
+            sample(out, "jetty_saturation", labels, (double) (pool.getUtilizedThreads() + pool.getQueueSize())
+                    / Math.max(1, pool.getMaxThreads() - pool.getLeasedThreads()));
+        });
+    }
+
+    public MetricsServlet concurrencyLimits(ConcurrencyLimitFilter filter) {
+        return add(out -> {
+            for (var endpoint : filter.endpoints()) {
+                String labels = label("endpoint", endpoint.getEndpoint());
+                sample(out, "api_concurrency_limit", labels, endpoint.getLimit());
+                sample(out, "api_in_flight", labels, endpoint.getInFlight());
+                sample(out, "api_accepted_total", labels, endpoint.getAccepted());
+                sample(out, "api_rejected_total", labels, endpoint.getRejected());
+                sample(out, "api_latency_average_ms", labels, endpoint.getAverageLatencyMillis());
+            }
+        });
+    }
+
+    public MetricsServlet microCache(MicroCacheHandler cache) {
+        return add(out -> {
+            sample(out, "http_microcache_hits_total", null, cache.hits());
+            sample(out, "http_microcache_misses_total", null, cache.misses());
+            sample(out, "http_microcache_coalesced_total", null, cache.coalesced());
+            sample(out, "http_microcache_evictions_total", null, cache.evictions());
+            sample(out, "http_microcache_bytes", null, cache.bytes());
+        });
+    }
+
+    /**
+     * How well identical concurrent reads are being coalesced.
+     */
+    public MetricsServlet singleFlight(String read, SingleFlight<?, ?> flight) {
+        String labels = label("read", read);
+        return add(out -> {
+            sample(out, "db_reads_total", labels, flight.calls());
+            sample(out, "db_read_queries_total", labels, flight.executions());
+            sample(out, "db_read_coalescing_ratio", labels, flight.coalescingRatio());
+        });
+    }
+
+    public static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    public static void sample(StringBuilder out, String name, String labels, Number value) {
+        out.append(name);
+        if (labels != null)
+            out.append('{').append(labels).append('}');
+        out.append(' ').append(value).append('\n');
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        var out = new StringBuilder(1024);
+        for (var source : sources)
+            source.writeTo(out);
+        resp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        resp.getWriter().write(out.toString());
+    }
+}
@@ -0,0 +1,347 @@
+package embeddedjettyexamples;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.util.Callback;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Keeps whole GET responses for a fraction of a second, so a burst of identical
+ * reads is answered from memory without reaching the filters, Jersey or the
+ * database. Concurrent misses for the same request wait for the first one
+ * instead of all going through.
+ * <p>
+ * Entries are keyed on the URI and the request headers the answer depends on -
+ * including Authorization, so a response is only ever replayed to a caller who
+ * presented the same credentials to get it. They expire after the TTL, and the
+ * least recently used go first once the cache is over its size. Any other
+ * method under the path (a POST, say) empties the cache before its response is
+ * sent, so a client always reads its own writes; writes by other instances can
+ * be up to the TTL late.
+ * <p>
+ * Only complete, reasonably small 200 and 304 responses without cookies or
+ * no-store are kept. The body is captured by an output interceptor rather than
+ * a response wrapper, so streaming and asynchronous responses pass through
+ * untouched.
+ */
+public class MicroCacheHandler extends HandlerWrapper {
+    // differ per response, so are never replayed
+    private static final Set<String> UNCACHED_HEADERS = Set.of(HttpHeader.DATE.asString(),
+            HttpHeader.CONTENT_LENGTH.asString(), "X-Trace-Id", "Server-Timing", "X-Cache");
+
+    record Key(String connector, String pathQuery, String accept, String acceptEncoding, String origin,
+            String authorization, String ifNoneMatch) {
+    }
+
+    record Entry(int status, List<HttpField> headers, ByteBuffer body, long epoch, long expires, long size) {
+    }
+
+    private final String pathPrefix;
+    private final long ttlNanos;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+
+    // any write moves the epoch on, leaving every entry and in-flight miss behind
+    private final AtomicLong writes = new AtomicLong();
+    private final SingleFlight<Key, Entry> misses = new SingleFlight<>(writes::get);
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param pathPrefix only GETs for paths starting with this are cached
+     * @param maxBytes   for all entries together; one entry can be up to a
+     *                   sixteenth of it
+     */
+    public MicroCacheHandler(String pathPrefix, Duration ttl, long maxBytes) {
+        this.pathPrefix = pathPrefix;
+        this.ttlNanos = ttl.toNanos();
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 16;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        if (!target.startsWith(pathPrefix)) {
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+        switch (request.getMethod()) {
+        case "GET":
+            break;
+        case "HEAD", "OPTIONS":
+            super.handle(target, baseRequest, request, response);
+            return;
+        default:
+            handleWrite(target, baseRequest, request, response);
+            return;
+        }
+
+        // the same path can mean something else, or nothing, on another connector
+        var key = new Key(baseRequest.getHttpChannel().getConnector().getName(),
+                baseRequest.getHttpURI().getPathQuery(), request.getHeader("Accept"),
+                request.getHeader("Accept-Encoding"), request.getHeader("Origin"), request.getHeader("Authorization"),
+                request.getHeader("If-None-Match"));
+        long epoch = writes.get();
+        var entry = lookup(key, epoch);
+        if (entry == null) {
+            // the first miss goes through and fills the entry; the rest wait for it
+            boolean[] wentThrough = new boolean[1];
+            try {
+                entry = misses.get(key, () -> {
+                    wentThrough[0] = true;
+                    try {
+                        return fill(target, baseRequest, request, response, key, epoch);
+                    } catch (IOException | ServletException e) {
+                        throw new HandlingFailed(e);
+                    }
+                });
+            } catch (RuntimeException e) {
+                if (!wentThrough[0]) {
+                    // the one we waited for failed - we'll try for ourselves
+                    entry = null;
+                } else if (e instanceof HandlingFailed failed && failed.getCause() instanceof IOException cause) {
+                    throw cause;
+                } else if (e instanceof HandlingFailed failed) {
+                    throw (ServletException) failed.getCause();
+                } else {
+                    throw e;
+                }
+            }
+            if (wentThrough[0])
+                return;
+        } else {
+            hits.increment();
+        }
+
+        if (entry == null) {
+            // what we were waiting for couldn't be kept - go through ourselves
+            response.setHeader("X-Cache", "MISS");
+            super.handle(target, baseRequest, request, response);
+        } else {
+            replay(baseRequest, entry);
+        }
+    }
+
+    private void handleWrite(String target, Request baseRequest, HttpServletRequest request,
+            HttpServletResponse response) throws IOException, ServletException {
+        var output = baseRequest.getResponse().getHttpOutput();
+        var next = output.getInterceptor();
+        // before the response can reach the client, so its next read misses
+        output.setInterceptor(new HttpOutput.Interceptor() {
+            @Override
+            public void write(ByteBuffer content, boolean last, Callback callback) {
+                if (last)
+                    invalidate();
+                next.write(content, last, callback);
+            }
+
+            @Override
+            public HttpOutput.Interceptor getNextInterceptor() {
+                return next;
+            }
+        });
+        try {
+            super.handle(target, baseRequest, request, response);
+        } finally {
+            invalidate();
+        }
+    }
+
+    /**
+     * Handle the request, capturing the response on its way out.
+     *
+     * @return the entry, or null if it can't be kept
+     */
+    private Entry fill(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response,
+            Key key, long epoch) throws IOException, ServletException {
+        var output = baseRequest.getResponse().getHttpOutput();
+        var capture = new Capture(output.getInterceptor());
+        output.setInterceptor(capture);
+        response.setHeader("X-Cache", "MISS");
+        super.handle(target, baseRequest, request, response);
+        if (!baseRequest.isHandled()) {
+            // not ours after all (not this connector's, say) - leave the response
+            // for whichever handler takes it
+            capture.stop(output);
+            response.setHeader("X-Cache", null);
+            return null;
+        }
+        if (baseRequest.isAsyncStarted()) {
+            // still being written - a stream, or a big download - and not worth
+            // copying
+            capture.stop(output);
+            return null;
+        }
+        // finish the response now rather than after we return, so the capture is
+        // complete
+        baseRequest.getResponse().closeOutput();
+
+        var entry = capture.entry(baseRequest.getResponse(), epoch);
+        if (entry != null)
+            store(key, entry);
+        return entry;
+    }
+
+    private void replay(Request baseRequest, Entry entry) throws IOException {
+        baseRequest.setHandled(true);
+        var response = baseRequest.getResponse();
+        response.setStatus(entry.status());
+        var fields = response.getHttpFields();
+        for (var field : entry.headers())
+            fields.add(field);
+        fields.put("X-Cache", "HIT");
+        response.setContentLength(entry.body().remaining());
+        response.getHttpOutput().sendContent(entry.body().slice());
+    }
+
+    private synchronized Entry lookup(Key key, long epoch) {
+        var entry = entries.get(key);
+        if (entry == null)
+            return null;
+        if (entry.epoch() != epoch || System.nanoTime() - entry.expires() > 0) {
+            entries.remove(key);
+            bytes -= entry.size();
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void store(Key key, Entry entry) {
+        // a write since the miss started, and this may already be out of date
+        if (entry.epoch() != writes.get())
+            return;
+        var previous = entries.put(key, entry);
+        if (previous != null)
+            bytes -= previous.size();
+        bytes += entry.size();
+        var eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().size();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private synchronized void invalidate() {
+        writes.incrementAndGet();
+        entries.clear();
+        bytes = 0;
+    }
+
+    // carries fill's checked exceptions out through SingleFlight
+    private static class HandlingFailed extends RuntimeException {
+        HandlingFailed(Exception cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Passes everything on, keeping a copy of the body while it's small enough
+     * to cache.
+     */
+    private class Capture implements HttpOutput.Interceptor {
+        private final HttpOutput.Interceptor next;
+        // written to by whichever thread is writing the response
+        private volatile ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private volatile boolean complete;
+
+        Capture(HttpOutput.Interceptor next) {
+            this.next = next;
+        }
+
+        @Override
+        public void write(ByteBuffer content, boolean last, Callback callback) {
+            var body = this.body;
+            if (body != null) {
+                if (body.size() + content.remaining() > maxEntryBytes) {
+                    this.body = null;
+                } else {
+                    // a copy, leaving the buffer as it was for the next interceptor
+                    byte[] copy = new byte[content.remaining()];
+                    content.slice().get(copy);
+                    body.write(copy, 0, copy.length);
+                }
+            }
+            if (last)
+                complete = true;
+            next.write(content, last, callback);
+        }
+
+        /**
+         * Drop what's been copied, and copy nothing more.
+         */
+        void stop(HttpOutput output) {
+            body = null;
+            // unless something has been put in front of us since
+            if (output.getInterceptor() == this)
+                output.setInterceptor(next);
+        }
+
+        @Override
+        public HttpOutput.Interceptor getNextInterceptor() {
+            return next;
+        }
+
+        Entry entry(Response response, long epoch) {
+            int status = response.getStatus();
+            if (!complete || body == null || (status != 200 && status != 304))
+                return null;
+            var fields = response.getHttpFields();
+            String cacheControl = fields.get(HttpHeader.CACHE_CONTROL);
+            if (fields.contains(HttpHeader.SET_COOKIE)
+                    || (cacheControl != null && (cacheControl.contains("no-store") || cacheControl.contains("private"))))
+                return null;
+            var headers = fields.stream().filter(field -> !UNCACHED_HEADERS.contains(field.getName())).toList();
+            long size = body.size();
+            for (var header : headers)
+                size += header.getName().length() + header.getValue().length();
+            return new Entry(status, headers, ByteBuffer.wrap(body.toByteArray()).asReadOnlyBuffer(), epoch,
+                    System.nanoTime() + ttlNanos, size);
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return requests that went through to the application - misses that
+     *         waited for another are counted by {@link #coalesced()}
+     */
+    public long misses() {
+        return misses.executions();
+    }
+
+    public long coalesced() {
+        return misses.calls() - misses.executions();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+}
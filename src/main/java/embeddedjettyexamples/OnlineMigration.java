@@ -0,0 +1,180 @@
+package embeddedjettyexamples;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.logging.Logger;
+
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+
+/**
+ * Base for Java migrations that change a big table while the application keeps
+ * using it.
+ * <p>
+ * These run outside of a transaction: data changes are applied in small
+ * batches that each commit on their own, so no lock is held for longer than a
+ * batch, and indexes are built with CREATE INDEX CONCURRENTLY. Batch progress
+ * is kept in the online_migration_progress table, which is also where to look
+ * to see how far along a migration is. If the process dies part way through,
+ * Flyway hasn't recorded the migration, so it runs again on the next startup
+ * and carries on from the last committed batch. (If it fails with an error
+ * instead, Flyway records the failure and needs a `flyway repair` first.)
+ * <p>
+ * Since the application keeps running against the table, migrations need to be
+ * written expand/contract style - the old and new shapes both have to work
+ * while the backfill is going on.
+ */
+public abstract class OnlineMigration extends BaseJavaMigration {
+    private static final Logger logger = Logger.getLogger(OnlineMigration.class.getName());
+    private static final long PROGRESS_LOG_INTERVAL_NANOS = Duration.ofSeconds(10).toNanos();
+
+    @Override
+    public boolean canExecuteInTransaction() {
+        return false;
+    }
+
+    /**
+     * Apply batchSql to every row of table with a keyColumn value up to the
+     * current maximum, batchSize keys at a time. batchSql takes two parameters,
+     * the (exclusive) lower and (inclusive) upper key of the batch - e.g.
+     * "update t set b = a where id > ? and id <= ?". keyColumn should be
+     * indexed, or each batch is a full scan.
+     * <p>
+     * Rows added after the backfill starts aren't visited, so the application
+     * should already be writing them in the new shape.
+     *
+     * @param name   identifies this backfill's progress - unique across all
+     *               migrations
+     * @param pause  time to wait between batches, to leave the database some
+     *               room for everyone else
+     */
+    protected void backfill(Context context, String name, String table, String keyColumn, String batchSql,
+            long batchSize, Duration pause) throws SQLException, InterruptedException {
+        var connection = context.getConnection();
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(true);
+            execute(connection, "create table if not exists online_migration_progress (name text primary key,"
+                    + " last_key bigint not null, max_key bigint not null, rows_done bigint not null,"
+                    + " finished boolean not null default false, updated timestamp with time zone not null)");
+
+            // first time through, remember where the table ends now
+            try (var insert = connection.prepareStatement("insert into online_migration_progress"
+                    + " (name, last_key, max_key, rows_done, updated)"
+                    + " select ?, coalesce(min(" + keyColumn + "), 0) - 1, coalesce(max(" + keyColumn + "), 0),"
+                    + " 0, current_timestamp from " + table + " on conflict (name) do nothing")) {
+                insert.setString(1, name);
+                insert.executeUpdate();
+            }
+
+            long lastKey, maxKey, rowsDone;
+            try (var select = connection.prepareStatement(
+                    "select last_key, max_key, rows_done, finished from online_migration_progress where name = ?")) {
+                select.setString(1, name);
+                try (var row = select.executeQuery()) {
+                    row.next();
+                    if (row.getBoolean("finished"))
+                        return;
+                    lastKey = row.getLong("last_key");
+                    maxKey = row.getLong("max_key");
+                    rowsDone = row.getLong("rows_done");
+                }
+            }
+            if (rowsDone > 0)
+                logger.info(String.format("%s: resuming after key %d of %d, %d rows done", name, lastKey, maxKey,
+                        rowsDone));
+
+            connection.setAutoCommit(false);
+            long startKey = lastKey;
+            long start = System.nanoTime();
+            long lastLog = start;
+            try (var batch = connection.prepareStatement(batchSql);
+                    var progress = connection.prepareStatement("update online_migration_progress"
+                            + " set last_key = ?, rows_done = ?, updated = current_timestamp where name = ?")) {
+                while (lastKey < maxKey) {
+                    long toKey = Math.min(lastKey + batchSize, maxKey);
+                    batch.setLong(1, lastKey);
+                    batch.setLong(2, toKey);
+                    rowsDone += batch.executeUpdate();
+                    // progress commits with the batch, so a restart never redoes or
+                    // skips one
+                    progress.setLong(1, toKey);
+                    progress.setLong(2, rowsDone);
+                    progress.setString(3, name);
+                    progress.executeUpdate();
+                    connection.commit();
+                    lastKey = toKey;
+
+                    long now = System.nanoTime();
+                    if (now - lastLog > PROGRESS_LOG_INTERVAL_NANOS) {
+                        lastLog = now;
+                        logger.info(String.format("%s: key %d of %d (%.1f%%), %d rows, %.0f keys/s", name, lastKey,
+                                maxKey, percent(lastKey, startKey, maxKey), rowsDone,
+                                (lastKey - startKey) * 1e9 / (now - start)));
+                    }
+                    if (!pause.isZero())
+                        Thread.sleep(pause.toMillis());
+                }
+            } catch (SQLException | InterruptedException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            }
+
+            connection.setAutoCommit(true);
+            try (var finish = connection.prepareStatement(
+                    "update online_migration_progress set finished = true, updated = current_timestamp where name = ?")) {
+                finish.setString(1, name);
+                finish.executeUpdate();
+            }
+            logger.info(String.format("%s: done, %d rows", name, rowsDone));
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static double percent(long key, long startKey, long maxKey) {
+        return maxKey == startKey ? 100 : 100.0 * (key - startKey) / (maxKey - startKey);
+    }
+
+    /**
+     * Build an index without blocking writes to the table. createSql must use
+     * CREATE INDEX CONCURRENTLY. A concurrent build that was interrupted leaves
+     * an invalid index behind, so that's dropped and built again.
+     */
+    protected void createIndexConcurrently(Context context, String indexName, String createSql)
+            throws SQLException {
+        var connection = context.getConnection();
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            // concurrent index builds refuse to run inside a transaction
+            connection.setAutoCommit(true);
+            Boolean valid = null;
+            try (var select = connection.prepareStatement("select i.indisvalid from pg_class c"
+                    + " join pg_index i on i.indexrelid = c.oid where c.relname = ?")) {
+                select.setString(1, indexName);
+                try (var row = select.executeQuery()) {
+                    if (row.next())
+                        valid = row.getBoolean(1);
+                }
+            }
+            if (Boolean.TRUE.equals(valid))
+                return;
+            if (valid != null) {
+                logger.info(indexName + ": dropping invalid index left by an interrupted build");
+                execute(connection, "drop index concurrently " + indexName);
+            }
+            long start = System.nanoTime();
+            execute(connection, createSql);
+            logger.info(String.format("%s: built in %.1fs", indexName, (System.nanoTime() - start) / 1e9));
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    protected static void execute(Connection connection, String sql) throws SQLException {
+        try (var statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+}
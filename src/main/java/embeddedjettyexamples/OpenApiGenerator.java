@@ -0,0 +1,62 @@
+package embeddedjettyexamples;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import io.swagger.v3.core.util.Json;
+import io.swagger.v3.jaxrs2.Reader;
+import io.swagger.v3.oas.integration.SwaggerConfiguration;
+
+/**
+ * Generates the OpenAPI definition at build time, so the server doesn't have to
+ * reflect over its resources with swagger at startup (or load swagger at all).
+ * Run by the exec-maven-plugin in the process-classes phase - see pom.xml.
+ * <p>
+ * Usage: OpenApiGenerator outputDirectory apiPath resourceClass...
+ * <p>
+ * Writes swagger.json and a gzipped swagger.json.gz, so the server can send
+ * whichever the client accepts without compressing anything per request.
+ */
+public class OpenApiGenerator {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3)
+            throw new IllegalArgumentException("usage: OpenApiGenerator outputDirectory apiPath resourceClass...");
+        var outputDirectory = Paths.get(args[0]);
+        String apiPath = args[1];
+        Set<Class<?>> resourceClasses = new HashSet<>();
+        for (int i = 2; i < args.length; ++i)
+            resourceClasses.add(Class.forName(args[i]));
+
+        var reader = new Reader(new SwaggerConfiguration()) {
+            @Override
+            protected String resolveApplicationPath() {
+                return apiPath;
+            }
+        };
+        byte[] openApiJson = Json.pretty(reader.read(resourceClasses)).getBytes(StandardCharsets.UTF_8);
+
+        Files.createDirectories(outputDirectory);
+        Files.write(outputDirectory.resolve("swagger.json"), openApiJson);
+        Files.write(outputDirectory.resolve("swagger.json.gz"), gzip(openApiJson));
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        var compressed = new ByteArrayOutputStream();
+        // it's compressed once, so we might as well take our time
+        try (var out = new GZIPOutputStream(compressed) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            out.write(content);
+        }
+        return compressed.toByteArray();
+    }
+}
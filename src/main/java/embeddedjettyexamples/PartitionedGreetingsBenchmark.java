@@ -0,0 +1,107 @@
+package embeddedjettyexamples;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.flywaydb.core.Flyway;
+import org.postgresql.ds.PGSimpleDataSource;
+
+/**
+ * Time the latest-greeting query as the partitioned greetings table grows.
+ * Loads greetings spread over the last two years into a scratch database,
+ * timing the query at each size along the way. The query reads one index entry
+ * per partition, so it should stay flat as rows are added to the same months;
+ * it grows with the number of months kept, which this doesn't change.
+ * <p>
+ * Usage: PartitionedGreetingsBenchmark [maxRows] [database] [user] [password]
+ * <p>
+ * The database should be empty and is left full - 100M rows is a good deal of
+ * disk.
+ */
+public class PartitionedGreetingsBenchmark {
+    private static final String LATEST_GREETING = "select version, greeting from greetings order by version desc limit 1";
+    private static final long LOAD_CHUNK = 1_000_000;
+    private static final int LOAD_DAYS = 720;
+
+    public static void main(String[] args) throws Exception {
+        long maxRows = args.length > 0 ? Long.parseLong(args[0]) : 100_000_000;
+        var dataSource = new PGSimpleDataSource();
+        dataSource.setServerNames(new String[] { "localhost" });
+        dataSource.setDatabaseName(args.length > 1 ? args[1] : "jetty_bench");
+        dataSource.setUser(args.length > 2 ? args[2] : "jetty2");
+        dataSource.setPassword(args.length > 3 ? args[3] : "jetty2");
+
+        // V4 gives every month from the oldest greeting on a partition of its own,
+        // and puts anything older in greetings_historic. Seed the table with a
+        // greeting as old as the ones we'll load before it runs, so they're spread
+        // over monthly partitions rather than all landing in the historic one
+        Flyway.configure().dataSource(dataSource).target("3").load().migrate();
+        try (var connection = dataSource.getConnection()) {
+            if (!GreetingPartitions.isPartitioned(connection, "greetings") && count(connection) == 0)
+                try (var statement = connection.createStatement()) {
+                    statement.execute("insert into greetings (greeting, added)"
+                            + " values ('oldest', current_timestamp - interval '" + LOAD_DAYS + " days')");
+                }
+        }
+        Flyway.configure().dataSource(dataSource).load().migrate();
+
+        try (var connection = dataSource.getConnection()) {
+            System.out.printf("%12s %10s %10s %10s%n", "rows", "p50 us", "p99 us", "max us");
+            long rows = count(connection);
+            for (long target = 1_000; target <= maxRows; target *= 10) {
+                while (rows < target) {
+                    long chunk = Math.min(LOAD_CHUNK, target - rows);
+                    load(connection, chunk);
+                    rows += chunk;
+                }
+                try (var statement = connection.createStatement()) {
+                    statement.execute("analyze greetings");
+                }
+                report(connection, rows);
+            }
+        }
+    }
+
+    private static long count(Connection connection) throws SQLException {
+        try (var statement = connection.createStatement();
+                var row = statement.executeQuery("select count(*) from greetings")) {
+            row.next();
+            return row.getLong(1);
+        }
+    }
+
+    private static void load(Connection connection, long rows) throws SQLException {
+        try (var insert = connection.prepareStatement("insert into greetings (greeting, added)"
+                + " select 'greeting ' || g, current_timestamp - random() * interval '" + LOAD_DAYS + " days'"
+                + " from generate_series(1, ?) g")) {
+            insert.setLong(1, rows);
+            insert.executeUpdate();
+        }
+    }
+
+    private static void report(Connection connection, long rows) throws SQLException {
+        int iterations = 2000;
+        long[] latencies = new long[iterations];
+        try (var select = connection.prepareStatement(LATEST_GREETING)) {
+            // let the plan settle into a generic one, as it would for the server
+            for (int i = 0; i < 200; ++i)
+                runOnce(select);
+            for (int i = 0; i < iterations; ++i) {
+                long start = System.nanoTime();
+                runOnce(select);
+                latencies[i] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%12d %10.1f %10.1f %10.1f%n", rows, latencies[iterations / 2] / 1e3,
+                latencies[(int) (iterations * 0.99)] / 1e3, latencies[iterations - 1] / 1e3);
+    }
+
+    private static void runOnce(PreparedStatement select) throws SQLException {
+        try (var row = select.executeQuery()) {
+            row.next();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package embeddedjettyexamples;
+
+import static jakarta.ws.rs.core.Response.Status.BAD_REQUEST;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import embeddedjettyexamples.SimpleServer5WithLogging.Database;
+import embeddedjettyexamples.SimpleServer5WithLogging.Greeting;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * The greeting, repeated, one per line - what Greeting.repeat was always meant
+ * for.
+ * <p>
+ * GET renders the current greeting ?repeat=N times; POST takes a Greeting,
+ * stores it like POST /hello does (202 if it was spooled), and renders it
+ * greeting.repeat times. Either way the body is written with non-blocking I/O
+ * from one small buffer that's refilled only once the client has taken the
+ * last one, so memory stays flat however big the body is, and a slow client
+ * holds no thread.
+ */
+public class RepeatedGreetingServlet extends HttpServlet {
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final Database database;
+    private final long maxRepeat;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public RepeatedGreetingServlet(Database database, long maxRepeat) {
+        this.database = database;
+        this.maxRepeat = maxRepeat;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        long repeat;
+        try {
+            String repeatParameter = req.getParameter("repeat");
+            repeat = repeatParameter == null ? 1 : Long.parseLong(repeatParameter);
+        } catch (NumberFormatException e) {
+            resp.sendError(BAD_REQUEST.getStatusCode(), "repeat must be a number");
+            return;
+        }
+        stream(req, resp, database.getGreeting(), repeat);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        Greeting greeting;
+        try {
+            greeting = objectMapper.readValue(req.getInputStream(), Greeting.class);
+        } catch (JsonProcessingException e) {
+            resp.sendError(BAD_REQUEST.getStatusCode(), "expected a greeting");
+            return;
+        }
+        if (greeting.greeting == null) {
+            resp.sendError(BAD_REQUEST.getStatusCode(), "expected a greeting");
+            return;
+        }
+        long repeat = greeting.repeat == null ? 1 : greeting.repeat;
+        // a request we turn away mustn't have stored anything
+        if (!validRepeat(resp, repeat))
+            return;
+        // stored just as POST /hello stores it: by tenant or user, and through the
+        // spool with write-behind
+        if (database.spoolGreeting(Database.keyFor(req.getHeader("X-Tenant"), req.getUserPrincipal()),
+                greeting.greeting))
+            resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+        stream(req, resp, greeting.greeting, repeat);
+    }
+
+    private boolean validRepeat(HttpServletResponse resp, long repeat) throws IOException {
+        if (repeat >= 0 && repeat <= maxRepeat)
+            return true;
+        resp.sendError(BAD_REQUEST.getStatusCode(), "repeat must be between 0 and " + maxRepeat);
+        return false;
+    }
+
+    private void stream(HttpServletRequest req, HttpServletResponse resp, String greeting, long repeat)
+            throws IOException {
+        if (!validRepeat(resp, repeat))
+            return;
+        byte[] line = (greeting + "\n").getBytes(StandardCharsets.UTF_8);
+        resp.setContentType("text/plain;charset=utf-8");
+        resp.setContentLengthLong(line.length * repeat);
+
+        var asyncContext = req.startAsync();
+        // a big body can take a while. A client that stops reading is still caught
+        // by the connector's idle timeout
+        asyncContext.setTimeout(0);
+        var out = resp.getOutputStream();
+        out.setWriteListener(new RepeatWriter(asyncContext, out, line, repeat));
+    }
+
+    private static class RepeatWriter implements WriteListener {
+        private final AsyncContext asyncContext;
+        private final ServletOutputStream out;
+        private final byte[] line;
+        private final byte[] buffer;
+        private long remainingBytes;
+        private int lineOffset;
+
+        RepeatWriter(AsyncContext asyncContext, ServletOutputStream out, byte[] line, long repeat) {
+            this.asyncContext = asyncContext;
+            this.out = out;
+            this.line = line;
+            this.buffer = new byte[Math.max(BUFFER_SIZE, line.length)];
+            this.remainingBytes = line.length * repeat;
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            // isReady() only goes true once the last write is done with the buffer,
+            // so it's always safe to refill here
+            while (out.isReady()) {
+                if (remainingBytes == 0) {
+                    asyncContext.complete();
+                    return;
+                }
+                int length = fill();
+                out.write(buffer, 0, length);
+            }
+        }
+
+        /**
+         * Fill the buffer with the next part of the body. Lines may be split
+         * across buffers.
+         */
+        private int fill() {
+            int length = (int) Math.min(buffer.length, remainingBytes);
+            int filled = 0;
+            while (filled < length) {
+                int chunk = Math.min(length - filled, line.length - lineOffset);
+                System.arraycopy(line, lineOffset, buffer, filled, chunk);
+                filled += chunk;
+                lineOffset = (lineOffset + chunk) % line.length;
+            }
+            remainingBytes -= length;
+            return length;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            asyncContext.complete();
+        }
+    }
+}
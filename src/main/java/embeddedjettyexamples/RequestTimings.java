@@ -0,0 +1,312 @@
+package embeddedjettyexamples;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.sql.DataSource;
+
+import org.eclipse.jetty.server.CustomRequestLog;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.RequestLog;
+import org.eclipse.jetty.server.Response;
+import org.jdbi.v3.core.ConnectionFactory;
+import org.jdbi.v3.core.statement.SqlLogger;
+import org.jdbi.v3.core.statement.StatementContext;
+
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.ext.WriterInterceptor;
+import jakarta.ws.rs.ext.WriterInterceptorContext;
+
+/**
+ * Per-request phase timers. One of these is created per request by
+ * {@link TimingFilter} and is reachable from the request (for the access log)
+ * and from the request thread (for the database and Jersey hooks). It is just a
+ * trace id and a handful of longs, so it's cheap enough to leave on for every
+ * request.
+ */
+public class RequestTimings {
+    public static final String ATTRIBUTE = RequestTimings.class.getName();
+    public static final String TRACE_ID_HEADER = "X-Trace-Id";
+
+    public enum Phase {
+        CORS("cors"), AUTH("auth"), DISPATCH("dispatch"), DB_POOL("db-pool"), DB_SQL("db-sql"), SERIALIZE("serialize");
+
+        final String metricName;
+
+        Phase(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final ThreadLocal<RequestTimings> current = new ThreadLocal<>();
+
+    public final String traceId;
+    private final long startNanos;
+    private final long[] phaseNanos = new long[PHASES.length];
+    private final boolean sendHeader;
+    private long totalNanos = -1;
+
+    RequestTimings(String traceId, boolean sendHeader) {
+        this.traceId = traceId;
+        this.sendHeader = sendHeader;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the timings of the request being handled on this thread, or null
+     *         if there isn't one
+     */
+    public static RequestTimings current() {
+        return current.get();
+    }
+
+    public static RequestTimings of(ServletRequest request) {
+        return (RequestTimings) request.getAttribute(ATTRIBUTE);
+    }
+
+    /**
+     * Charge the time since startNanos to phase, if there's a request being timed
+     * on this thread.
+     */
+    public static void record(Phase phase, long startNanos) {
+        var timings = current.get();
+        if (timings != null)
+            timings.phaseNanos[phase.ordinal()] += System.nanoTime() - startNanos;
+    }
+
+    public long get(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * Stop the clock. Dispatch is whatever wasn't charged to some other phase -
+     * Jersey routing, entity reading and our own resource code.
+     */
+    void finish() {
+        totalNanos = System.nanoTime() - startNanos;
+        long accounted = 0;
+        for (Phase phase : PHASES)
+            if (phase != Phase.DISPATCH)
+                accounted += phaseNanos[phase.ordinal()];
+        phaseNanos[Phase.DISPATCH.ordinal()] = Math.max(0, totalNanos - accounted);
+    }
+
+    /**
+     * @return timings in Server-Timing header format, in milliseconds
+     */
+    public String toServerTiming() {
+        var out = new StringBuilder(128);
+        for (Phase phase : PHASES) {
+            appendMetric(out, phase.metricName, phaseNanos[phase.ordinal()]);
+            out.append(", ");
+        }
+        appendMetric(out, "total", totalNanos >= 0 ? totalNanos : System.nanoTime() - startNanos);
+        return out.toString();
+    }
+
+    private static void appendMetric(StringBuilder out, String name, long nanos) {
+        // microsecond resolution is plenty and avoids formatting doubles
+        long micros = nanos / 1000;
+        out.append(name).append(";dur=").append(micros / 1000).append('.');
+        long fraction = micros % 1000;
+        if (fraction < 100)
+            out.append('0');
+        if (fraction < 10)
+            out.append('0');
+        out.append(fraction);
+    }
+
+    static String newTraceId() {
+        var random = ThreadLocalRandom.current();
+        return toHex(random.nextLong()) + toHex(random.nextLong());
+    }
+
+    private static String toHex(long value) {
+        String hex = Long.toHexString(value);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    private void addHeaderIfUncommitted(HttpServletResponse response) {
+        if (sendHeader && !response.isCommitted() && !response.containsHeader("Server-Timing")) {
+            finish();
+            response.addHeader("Server-Timing", toServerTiming());
+        }
+    }
+
+    /**
+     * Outermost filter - starts the clock, hands out the trace id and, if
+     * enabled, adds the Server-Timing header to responses that Jersey didn't
+     * already add it to.
+     */
+    public static class TimingFilter implements Filter {
+        private final boolean sendServerTimingHeader;
+
+        public TimingFilter(boolean sendServerTimingHeader) {
+            this.sendServerTimingHeader = sendServerTimingHeader;
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+                throws IOException, ServletException {
+            var timings = new RequestTimings(newTraceId(), sendServerTimingHeader);
+            request.setAttribute(ATTRIBUTE, timings);
+            var httpResponse = (HttpServletResponse) response;
+            httpResponse.setHeader(TRACE_ID_HEADER, timings.traceId);
+            current.set(timings);
+            try {
+                chain.doFilter(request, response);
+            } finally {
+                current.remove();
+                timings.addHeaderIfUncommitted(httpResponse);
+            }
+        }
+    }
+
+    /**
+     * Times entity serialization. This is the last thing to run before Jersey
+     * commits the (buffered) response, so it's also where the Server-Timing
+     * header gets added.
+     */
+    public static class SerializationTimer implements WriterInterceptor {
+        @Override
+        public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+            var timings = current.get();
+            if (timings == null) {
+                context.proceed();
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                context.proceed();
+            } finally {
+                timings.phaseNanos[Phase.SERIALIZE.ordinal()] += System.nanoTime() - start;
+                if (timings.sendHeader) {
+                    timings.finish();
+                    context.getHeaders().putSingle("Server-Timing", timings.toServerTiming());
+                }
+            }
+        }
+    }
+
+    /**
+     * Jdbi connection source that charges time spent waiting on the pool to
+     * {@link Phase#DB_POOL}, and to a Flight Recorder event if we're recording.
+     */
+    public static ConnectionFactory timedConnections(DataSource dataSource) {
+        return new ConnectionFactory() {
+            @Override
+            public Connection openConnection() throws SQLException {
+                var event = new JfrEvents.ConnectionAcquireEvent();
+                event.begin();
+                long start = System.nanoTime();
+                try {
+                    return dataSource.getConnection();
+                } finally {
+                    record(Phase.DB_POOL, start);
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.traceId = JfrEvents.traceId();
+                        event.commit();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Charges statement execution time to {@link Phase#DB_SQL} and, if we're
+     * recording, to a Flight Recorder event, then passes on to the real SQL
+     * logger.
+     */
+    public static class TimedSqlLogger implements SqlLogger {
+        private static final String JFR_EVENT = JfrEvents.SqlEvent.class.getName();
+
+        private final SqlLogger delegate;
+
+        public TimedSqlLogger(SqlLogger delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void logBeforeExecution(StatementContext context) {
+            var event = new JfrEvents.SqlEvent();
+            if (event.isEnabled()) {
+                event.begin();
+                context.define(JFR_EVENT, event);
+            }
+            delegate.logBeforeExecution(context);
+        }
+
+        @Override
+        public void logAfterExecution(StatementContext context) {
+            charge(context, false);
+            delegate.logAfterExecution(context);
+        }
+
+        @Override
+        public void logException(StatementContext context, SQLException ex) {
+            charge(context, true);
+            delegate.logException(context, ex);
+        }
+
+        private void charge(StatementContext context, boolean failed) {
+            var timings = current.get();
+            if (timings != null)
+                timings.phaseNanos[Phase.DB_SQL.ordinal()] += context.getElapsedTime(ChronoUnit.NANOS);
+
+            var event = (JfrEvents.SqlEvent) context.getAttribute(JFR_EVENT);
+            if (event == null)
+                return;
+            event.end();
+            if (event.shouldCommit()) {
+                event.traceId = timings == null ? null : timings.traceId;
+                event.sql = context.getRenderedSql();
+                event.connectionAcquireTime = timings == null ? 0 : timings.get(Phase.DB_POOL);
+                event.failed = failed;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * The standard access log line, followed by the trace id and the phase
+     * timings. CustomRequestLog has no way to print request attributes, so we
+     * hand the timings to the writer through a thread local - the log line is
+     * formatted and written synchronously on the calling thread.
+     */
+    public static class AccessLog extends CustomRequestLog {
+        private static final ThreadLocal<RequestTimings> logging = new ThreadLocal<>();
+
+        public AccessLog(RequestLog.Writer writer) {
+            super(line -> {
+                var timings = logging.get();
+                writer.write(timings == null ? line : line + " " + timings.traceId + " " + timings.toServerTiming());
+            }, EXTENDED_NCSA_FORMAT);
+            // the writer is hidden inside our lambda, so manage its lifecycle here
+            addBean(writer);
+        }
+
+        @Override
+        public void log(Request request, Response response) {
+            var timings = of(request);
+            if (timings != null)
+                timings.finish();
+            logging.set(timings);
+            try {
+                super.log(request, response);
+            } finally {
+                logging.remove();
+            }
+        }
+    }
+}
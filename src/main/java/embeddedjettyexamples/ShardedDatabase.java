@@ -0,0 +1,115 @@
+package embeddedjettyexamples;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+import embeddedjettyexamples.GreetingDao.AddedGreeting;
+import embeddedjettyexamples.GreetingSpool.SpooledGreeting;
+import embeddedjettyexamples.SimpleServer5WithLogging.Database;
+import embeddedjettyexamples.SimpleServer5WithLogging.VersionedGreeting;
+
+/**
+ * Greetings spread over several databases, so writes aren't limited to what one
+ * Postgres can take. A greeting goes to the shard its key (the tenant) hashes
+ * to; reads ask every shard at once and merge what they get back.
+ * <p>
+ * Versions are unique across shards (see ShardedGreetingVersions) but not in
+ * time order - a busy shard's versions run ahead - so the latest greeting is
+ * the one added last. There's no latest-greeting cache here: keeping one
+ * honest would mean tracking every shard's listener, so reads always fan out.
+ */
+public class ShardedDatabase extends Database {
+    private final List<GreetingDao> shards;
+    private final ExecutorService fanOut;
+
+    /**
+     * @param parallelism queries in flight at once, across all shards. More than
+     *                    the shards' pools have connections just waits there
+     */
+    public ShardedDatabase(List<GreetingDao> shards, int parallelism) {
+        this.shards = List.copyOf(shards);
+        fanOut = Executors.newFixedThreadPool(parallelism, r -> {
+            var thread = new Thread(r, "greeting-shards");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    GreetingDao shardFor(String key) {
+        if (key == null)
+            return shards.get(ThreadLocalRandom.current().nextInt(shards.size()));
+        // String.hashCode is fixed by the spec, so every instance agrees
+        return shards.get(Math.floorMod(key.hashCode(), shards.size()));
+    }
+
+    @Override
+    public VersionedGreeting getLatestGreeting() {
+        // a burst of reads shares one fan-out
+        return latestReads.get("latest", () -> askEveryShard(GreetingDao::latestAdded).stream()
+                .flatMap(Optional::stream).max(Comparator.comparing(AddedGreeting::added))
+                .map(AddedGreeting::greeting).orElse(DEFAULT_GREETING));
+    }
+
+    @Override
+    public List<VersionedGreeting> getGreetings(long beforeVersion, int limit) {
+        // each shard's newest below beforeVersion - the page is the newest of
+        // those
+        return historyReads.get(new Page(beforeVersion, limit),
+                () -> askEveryShard(shard -> shard.page(beforeVersion, limit)).stream().flatMap(List::stream)
+                        .sorted(Comparator.comparingLong(VersionedGreeting::version).reversed()).limit(limit)
+                        .toList());
+    }
+
+    @Override
+    public void addGreeting(String key, String greeting) {
+        shardFor(key).add(greeting);
+        changed();
+    }
+
+    @Override
+    public void addGreetings(List<String> greetings) {
+        // one batch to one shard
+        shardFor(null).addAll(greetings);
+        changed();
+    }
+
+    @Override
+    public void addSpooledGreetings(List<SpooledGreeting> greetings) {
+        // a greeting without a key goes where its id says, so a replay takes it
+        // back to the shard that knows whether it's been added
+        var byShard = new LinkedHashMap<GreetingDao, List<SpooledGreeting>>();
+        for (var greeting : greetings)
+            byShard.computeIfAbsent(shardFor(greeting.key() != null ? greeting.key() : greeting.id().toString()),
+                    shard -> new ArrayList<>()).add(greeting);
+        byShard.forEach(GreetingDao::addSpooled);
+        changed();
+    }
+
+    @Override
+    public void pruneSpooledGreetings(Instant before) {
+        askEveryShard(shard -> shard.pruneSpooled(before));
+    }
+
+    private <T> List<T> askEveryShard(Function<GreetingDao, T> query) {
+        var answers = new ArrayList<CompletableFuture<T>>(shards.size());
+        for (var shard : shards)
+            answers.add(CompletableFuture.supplyAsync(() -> query.apply(shard), fanOut));
+        try {
+            return answers.stream().map(CompletableFuture::join).toList();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause)
+                throw cause;
+            throw e;
+        }
+    }
+}
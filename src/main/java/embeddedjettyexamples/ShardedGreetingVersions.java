@@ -0,0 +1,73 @@
+package embeddedjettyexamples;
+
+import java.util.Objects;
+
+import org.flywaydb.core.api.MigrationVersion;
+import org.flywaydb.core.api.migration.Context;
+import org.flywaydb.core.api.migration.JavaMigration;
+
+/**
+ * Makes shard index of count hand out versions that are index mod count, so
+ * that versions stay unique across shards without any shard asking another.
+ * <p>
+ * It's a repeatable migration, checksummed on the shard layout, so Flyway runs
+ * it again whenever the number of shards changes - and never otherwise.
+ * Versions only move forward, but ones written before a change can repeat on
+ * other shards, so add shards while writes are stopped, and start new shards
+ * empty.
+ */
+public class ShardedGreetingVersions implements JavaMigration {
+    private final int index;
+    private final int count;
+
+    public ShardedGreetingVersions(int index, int count) {
+        this.index = index;
+        this.count = count;
+    }
+
+    @Override
+    public MigrationVersion getVersion() {
+        // repeatable
+        return null;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Shard greeting versions";
+    }
+
+    @Override
+    public Integer getChecksum() {
+        return Objects.hash(index, count);
+    }
+
+    @Override
+    public boolean isUndo() {
+        return false;
+    }
+
+    @Override
+    public boolean isBaselineMigration() {
+        return false;
+    }
+
+    @Override
+    public boolean canExecuteInTransaction() {
+        return true;
+    }
+
+    @Override
+    public void migrate(Context context) throws Exception {
+        try (var statement = context.getConnection().createStatement()) {
+            long last;
+            try (var row = statement.executeQuery("select last_value from greetings_version_seq")) {
+                row.next();
+                last = row.getLong(1);
+            }
+            // the first version after last that belongs to this shard
+            long next = last + 1 + Math.floorMod(index - (last + 1), count);
+            statement.execute("alter sequence greetings_version_seq increment by " + count);
+            statement.execute("select setval('greetings_version_seq', " + next + ", false)");
+        }
+    }
+}
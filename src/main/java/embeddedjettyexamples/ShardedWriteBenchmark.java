@@ -0,0 +1,89 @@
+package embeddedjettyexamples;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.flywaydb.core.Flyway;
+import org.jdbi.v3.core.Jdbi;
+import org.jdbi.v3.sqlobject.SqlObjectPlugin;
+import org.postgresql.ds.PGSimpleDataSource;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import embeddedjettyexamples.SimpleServer5WithLogging.Database;
+import embeddedjettyexamples.SimpleServer5WithLogging.UnshardedDatabase;
+
+/**
+ * Show greeting writes scaling with the number of shards: the same load against
+ * the first one, then the first two, and so on. Each shard should be its own
+ * Postgres - on one machine, run several on different ports, e.g.
+ * <pre>
+ * docker run -d -p 5433:5432 -e POSTGRES_USER=jetty2 -e POSTGRES_PASSWORD=jetty2 postgres
+ * docker run -d -p 5434:5432 -e POSTGRES_USER=jetty2 -e POSTGRES_PASSWORD=jetty2 postgres
+ * </pre>
+ * Usage: ShardedWriteBenchmark threads seconds jdbcUrl...
+ * <p>
+ * Migrates every shard and leaves the greetings it wrote behind.
+ */
+public class ShardedWriteBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("usage: ShardedWriteBenchmark threads seconds jdbcUrl...");
+            System.exit(1);
+        }
+        int threads = Integer.parseInt(args[0]);
+        int seconds = Integer.parseInt(args[1]);
+        int shardCount = args.length - 2;
+
+        var shards = new ArrayList<GreetingDao>();
+        for (int shard = 0; shard < shardCount; ++shard) {
+            var dataSource = new PGSimpleDataSource();
+            dataSource.setUrl(args[shard + 2]);
+            dataSource.setUser("jetty2");
+            dataSource.setPassword("jetty2");
+            var hikariConfig = new HikariConfig();
+            hikariConfig.setDataSource(dataSource);
+            hikariConfig.setMaximumPoolSize(threads);
+            var hikariDataSource = new HikariDataSource(hikariConfig);
+            Flyway.configure().dataSource(hikariDataSource)
+                    .javaMigrations(new ShardedGreetingVersions(shard, shardCount)).load().migrate();
+            shards.add(Jdbi.create(hikariDataSource).installPlugin(new SqlObjectPlugin()).onDemand(GreetingDao.class));
+        }
+
+        System.out.printf("%6s %12s%n", "shards", "writes/s");
+        for (int used = 1; used <= shardCount; ++used) {
+            List<GreetingDao> subset = shards.subList(0, used);
+            var database = used == 1 ? new UnshardedDatabase(subset.get(0)) : new ShardedDatabase(subset, threads);
+            // one round to warm up, one to measure
+            run(database, threads, Math.max(1, seconds / 5));
+            System.out.printf("%6d %12.0f%n", used, run(database, threads, seconds));
+        }
+    }
+
+    private static double run(Database database, int threads, int seconds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        var writes = new AtomicLong();
+        var workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; ++i) {
+            int worker = i;
+            workers.add(new Thread(() -> {
+                long n = 0;
+                while (System.nanoTime() < deadline) {
+                    // every tenant different, so writes spread evenly
+                    database.addGreeting("tenant-" + worker + "-" + n, "benchmark " + n);
+                    ++n;
+                }
+                writes.addAndGet(n);
+            }));
+        }
+        long start = System.nanoTime();
+        for (var worker : workers)
+            worker.start();
+        for (var worker : workers)
+            worker.join();
+        return writes.get() / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -1,36 +1,56 @@
 package embeddedjettyexamples;
 
 import static jakarta.ws.rs.core.Response.Status.NOT_FOUND;
-import static java.util.stream.Collectors.toSet;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.Principal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.eclipse.jetty.server.CustomRequestLog;
+import org.eclipse.jetty.server.ForwardedRequestCustomizer;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.Slf4jRequestLogWriter;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
 import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.unixdomain.server.UnixDomainServerConnector;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.flywaydb.core.Flyway;
 import org.glassfish.jersey.server.ResourceConfig;
-import org.glassfish.jersey.server.wadl.WadlFeature;
+import org.glassfish.jersey.server.ServerProperties;
+import org.glassfish.jersey.server.model.Resource;
 import org.glassfish.jersey.servlet.ServletContainer;
 import org.jdbi.v3.core.Jdbi;
+import org.jdbi.v3.core.statement.ColonPrefixSqlParser;
 import org.jdbi.v3.core.statement.Slf4JSqlLogger;
+import org.jdbi.v3.core.statement.SqlStatements;
+import org.jdbi.v3.sqlobject.SqlObjectPlugin;
 import org.postgresql.ds.PGSimpleDataSource;
 
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 
-import io.swagger.v3.core.util.Json;
-import io.swagger.v3.jaxrs2.Reader;
-import io.swagger.v3.oas.integration.SwaggerConfiguration;
 import jakarta.servlet.DispatcherType;
 import jakarta.servlet.Filter;
 import jakarta.servlet.FilterChain;
@@ -42,12 +62,22 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpServletResponseWrapper;
 import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DefaultValue;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.Application;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.SecurityContext;
+
+import embeddedjettyexamples.GreetingSpool.SpooledGreeting;
 
 public class SimpleServer5WithLogging extends Application {
 
@@ -58,24 +88,219 @@ public class SimpleServer5WithLogging extends Application {
         public Integer repeat;
     }
 
-    public static class Database {
-        private Jdbi jdbi;
+    public record VersionedGreeting(long version, String greeting) {
+    }
+
+    /**
+     * Where greetings are kept, as the resources see it. What's common to every
+     * kind of storage lives here: reads sharing in-flight queries, write-behind
+     * through a spool, and the tenant key. {@link UnshardedDatabase} keeps them
+     * in one database, {@link ShardedDatabase} across several.
+     */
+    public abstract static class Database implements GreetingEvents.Watcher {
+        static final VersionedGreeting DEFAULT_GREETING = new VersionedGreeting(0, "Hi ya!");
+
+        private volatile GreetingSpool spool;
 
-        public Database(Jdbi jdbi) {
-            this.jdbi = jdbi;
+        record Page(long before, int limit) {
         }
 
+        // Identical reads in flight at the same time share one query. Every change
+        // we hear of moves the epoch on, so a read never joins a query that might
+        // be older than a greeting its caller could know about
+        private final AtomicLong changes = new AtomicLong();
+        protected final SingleFlight<String, VersionedGreeting> latestReads = new SingleFlight<>(changes::get);
+        protected final SingleFlight<Page, List<VersionedGreeting>> historyReads = new SingleFlight<>(changes::get);
+
         public String getGreeting() {
-            return jdbi.withHandle(h -> {
-                return h.select("select greeting from greetings order by added desc limit 1").mapTo(String.class)
-                        .findOne();
-            }).orElse("Hi ya!");
+            return getLatestGreeting().greeting();
+        }
+
+        public abstract VersionedGreeting getLatestGreeting();
+
+        /**
+         * Newest first, starting below beforeVersion.
+         */
+        public abstract List<VersionedGreeting> getGreetings(long beforeVersion, int limit);
+
+        /**
+         * A greeting was added - reads from now on mustn't share older queries.
+         */
+        protected void changed() {
+            changes.incrementAndGet();
         }
 
         public void addGreeting(String greeting) {
-            jdbi.useHandle(h -> {
-                h.execute("insert into greetings (greeting, added) values (?, current_timestamp)", greeting);
-            });
+            addGreeting(null, greeting);
+        }
+
+        /**
+         * Greetings are kept together by tenant, or by who's signed in.
+         *
+         * @return the key for {@link #addGreeting(String, String)}, or null
+         */
+        public static String keyFor(String tenant, Principal user) {
+            return tenant != null ? tenant : user != null ? user.getName() : null;
+        }
+
+        /**
+         * @param key what the greeting belongs to, such as the tenant - it
+         *            decides where a sharded database stores it
+         */
+        public abstract void addGreeting(String key, String greeting);
+
+        public abstract void addGreetings(List<String> greetings);
+
+        /**
+         * From now on, {@link #spoolGreeting(String, String)} hands greetings to
+         * the spool instead of adding them.
+         */
+        public void writeBehind(GreetingSpool spool) {
+            this.spool = spool;
+        }
+
+        /**
+         * Add the greeting later, through the spool, if there is one.
+         *
+         * @return false if there's no spool, and the greeting has been added
+         *         as usual
+         */
+        public boolean spoolGreeting(String key, String greeting) throws IOException {
+            var spool = this.spool;
+            if (spool == null) {
+                addGreeting(key, greeting);
+                return false;
+            }
+            spool.append(key, greeting);
+            return true;
+        }
+
+        /**
+         * For the spool's drainer. Greetings already added by an earlier attempt
+         * are skipped.
+         */
+        public abstract void addSpooledGreetings(List<SpooledGreeting> greetings);
+
+        /**
+         * Forget which spooled greetings were added before this - a replay of the
+         * spool can't go back that far.
+         */
+        public abstract void pruneSpooledGreetings(Instant before);
+
+        // with nothing cached, the listener only needs to stop reads sharing older
+        // queries
+
+        @Override
+        public void listening() {
+        }
+
+        @Override
+        public void notListening() {
+        }
+
+        @Override
+        public void greetingAdded(long version, String greeting) {
+            changed();
+        }
+    }
+
+    /**
+     * Greetings in one database, with the latest kept in memory while the
+     * listener keeps it honest.
+     */
+    public static class UnshardedDatabase extends Database {
+        private final GreetingDao dao;
+
+        // The latest greeting, so that reads can skip the database. This is only
+        // safe while we're LISTENing for changes made by other instances, so it's
+        // dropped whenever the listener (re)connects or goes away. generation
+        // tells a read that raced with a reconnect not to cache what it read.
+        private volatile VersionedGreeting cached;
+        private boolean listening;
+        private long generation;
+
+        public UnshardedDatabase(Jdbi jdbi) {
+            this(jdbi.installPlugin(new SqlObjectPlugin()).onDemand(GreetingDao.class));
+        }
+
+        public UnshardedDatabase(GreetingDao dao) {
+            this.dao = dao;
+        }
+
+        @Override
+        public VersionedGreeting getLatestGreeting() {
+            var latest = cached;
+            if (latest != null)
+                return latest;
+            return latestReads.get("latest", this::readLatest);
+        }
+
+        private VersionedGreeting readLatest() {
+            long readGeneration;
+            synchronized (this) {
+                readGeneration = generation;
+            }
+            var latest = dao.latest().orElse(DEFAULT_GREETING);
+            synchronized (this) {
+                if (listening && readGeneration == generation && (cached == null || latest.version() > cached.version()))
+                    cached = latest;
+            }
+            return latest;
+        }
+
+        @Override
+        public List<VersionedGreeting> getGreetings(long beforeVersion, int limit) {
+            return historyReads.get(new Page(beforeVersion, limit), () -> dao.page(beforeVersion, limit));
+        }
+
+        // one database, so the key makes no difference
+        @Override
+        public void addGreeting(String key, String greeting) {
+            long version = dao.add(greeting);
+            // don't wait for our own notification - a read straight after this write
+            // should see it
+            greetingAdded(version, greeting);
+        }
+
+        @Override
+        public void addGreetings(List<String> greetings) {
+            long[] versions = dao.addAll(greetings);
+            if (versions.length > 0)
+                greetingAdded(versions[versions.length - 1], greetings.get(greetings.size() - 1));
+        }
+
+        @Override
+        public void addSpooledGreetings(List<SpooledGreeting> greetings) {
+            var added = dao.addSpooled(greetings);
+            if (!added.isEmpty())
+                greetingAdded(added.get(added.size() - 1).version(), added.get(added.size() - 1).greeting());
+        }
+
+        @Override
+        public void pruneSpooledGreetings(Instant before) {
+            dao.pruneSpooled(before);
+        }
+
+        @Override
+        public synchronized void listening() {
+            listening = true;
+            generation++;
+            cached = null;
+        }
+
+        @Override
+        public synchronized void notListening() {
+            listening = false;
+            cached = null;
+        }
+
+        @Override
+        public synchronized void greetingAdded(long version, String greeting) {
+            changed();
+            // only move a cached greeting forward - if there's nothing cached, the
+            // next read will get it from the database
+            if (listening && cached != null && version > cached.version())
+                cached = new VersionedGreeting(version, greeting);
         }
     }
 
@@ -89,16 +314,36 @@ public class SimpleServer5WithLogging extends Application {
 
         @GET
         @Produces(MediaType.TEXT_PLAIN)
-        public String getAGreeting() {
-            return database.getGreeting();
+        public Response getAGreeting(@Context Request request) {
+            // the version is all we need to answer If-None-Match, and it's usually
+            // cached, so unchanged greetings cost neither a query nor a body
+            var latest = database.getLatestGreeting();
+            var etag = new EntityTag(Long.toString(latest.version()));
+            var notModified = request.evaluatePreconditions(etag);
+            if (notModified != null)
+                return notModified.build();
+            return Response.ok(latest.greeting()).tag(etag).build();
+        }
+
+        @GET
+        @Path("/history")
+        @Produces(MediaType.APPLICATION_JSON)
+        public List<VersionedGreeting> getGreetingHistory(
+                @QueryParam("before") @DefaultValue("" + Long.MAX_VALUE) long before,
+                @QueryParam("limit") @DefaultValue("20") int limit) {
+            return database.getGreetings(before, Math.max(1, Math.min(limit, 100)));
         }
 
         @POST
         @Produces(MediaType.TEXT_PLAIN)
         @Consumes(MediaType.APPLICATION_JSON)
-        public String setTheGreeting(Greeting greeting) {
-            database.addGreeting(greeting.greeting);
-            return greeting.greeting;
+        public Response setTheGreeting(Greeting greeting, @HeaderParam("X-Tenant") String tenant,
+                @Context SecurityContext security) throws IOException {
+            String key = Database.keyFor(tenant, security.getUserPrincipal());
+            // with write-behind, it's safely on disk but not in the database yet
+            if (database.spoolGreeting(key, greeting.greeting))
+                return Response.accepted(greeting.greeting).build();
+            return Response.ok(greeting.greeting).build();
         }
     }
 
@@ -116,7 +361,60 @@ public class SimpleServer5WithLogging extends Application {
         return Set.of(new SimpleResource(database));
     }
 
-    public static void main(String[] args) throws Exception {
+    /**
+     * The path templates of JAX-RS resource classes and their sub-resources,
+     * such as /hello/history.
+     */
+    static List<String> routeTemplates(Class<?>... resourceClasses) {
+        var templates = new ArrayList<String>();
+        for (var resourceClass : resourceClasses) {
+            var resource = Resource.from(resourceClass);
+            String base = "/" + resource.getPath().replaceAll("^/+|/+$", "");
+            if (!resource.getResourceMethods().isEmpty())
+                templates.add(base);
+            for (var child : resource.getChildResources())
+                templates.add(base + "/" + child.getPath().replaceAll("^/+|/+$", ""));
+        }
+        return templates;
+    }
+
+    private static byte[] readResource(String path) throws IOException {
+        try (var in = SimpleServer5WithLogging.class.getResourceAsStream(path)) {
+            return in == null ? null : in.readAllBytes();
+        }
+    }
+
+    /**
+     * The OpenAPI definition, read when this class is first used - at startup, or
+     * with -DlowFootprint, on the first request for it.
+     */
+    private static class OpenApiDefinition {
+        static final byte[] JSON;
+        static final byte[] GZIP;
+
+        static {
+            try {
+                JSON = readResource("/openapi/swagger.json");
+                GZIP = readResource("/openapi/swagger.json.gz");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (JSON == null)
+                Logger.getLogger(SimpleServer5WithLogging.class.getName())
+                        .warning("no generated OpenAPI definition - run mvn process-classes");
+        }
+
+        static void load() {
+            // the static initializer has done it
+        }
+    }
+
+    // keep a reference to loggers, or they get gc'ed and the config change is lost
+    private static Logger wadlLogger;
+    private static Logger jerseyLogger;
+    private static Logger jdbiLogger;
+
+    public static void configureLogging() {
         // #1
         // I prefer one line per log entry
         System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT.%1$tL %4$s %2$s %5$s%6$s%n");
@@ -129,100 +427,366 @@ public class SimpleServer5WithLogging extends Application {
         Logger.getLogger("").getHandlers()[0].setLevel(Level.FINEST);
 
         // #3
-        // Disable uninteresting warnings. keep a reference to loggers, or they get
-        // gc'ed and the config change is lost
-        Logger wadlLogger = Logger.getLogger(WadlFeature.class.getName());
+        // Disable uninteresting warnings
+        // by name, so as not to load the class for it
+        wadlLogger = Logger.getLogger("org.glassfish.jersey.server.wadl.WadlFeature");
         wadlLogger.setLevel(Level.SEVERE);
-        Logger jerseyLogger = Logger.getLogger("org.glassfish.jersey.internal");
+        jerseyLogger = Logger.getLogger("org.glassfish.jersey.internal");
         jerseyLogger.setLevel(Level.SEVERE);
 
+        // #5
+        // enable SQL statement logging
+        jdbiLogger = Logger.getLogger("org.jdbi.sql");
+        jdbiLogger.setLevel(Level.FINE);
+    }
+
+    public static void main(String[] args) throws Exception {
+        configureLogging();
+
         // create user jetty2 with encrypted password 'jetty2';
         // grant all privileges on database jetty2 to jetty2;
-        var dataSource = new PGSimpleDataSource();
-        dataSource.setServerNames(new String[] { "localhost" });
-        dataSource.setDatabaseName("jetty2");
-        dataSource.setUser("jetty2");
-        dataSource.setPassword("jetty2");
-        var hikariConfig = new HikariConfig();
-        hikariConfig.setDataSource(dataSource);
-        var hikariDataSource = new HikariDataSource(hikariConfig);
-
-        Flyway.configure().dataSource(hikariDataSource).load().migrate();
-
-        int port = 9000;
+        // -DgreetingShards=jdbc:postgresql://host1/jetty2,jdbc:postgresql://host2/jetty2
+        // spreads greetings over several databases like that one - see
+        // ShardedDatabase
+        String[] shardUrls = System.getProperty("greetingShards", "jdbc:postgresql://localhost/jetty2").split(",");
+        boolean lowFootprint = Boolean.getBoolean("lowFootprint");
+
+        // keep a few months of greetings partitions ahead of us and, with
+        // -DgreetingRetentionDays, drop the ones that have expired
+        Integer greetingRetentionDays = Integer.getInteger("greetingRetentionDays");
+        var maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "greetings-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Jdbi caches parsed SQL by default; this one keeps stats, for /metrics
+        var sqlParser = new ColonPrefixSqlParser(Caffeine.newBuilder().maximumSize(1000).recordStats());
+
+        var dataSources = new ArrayList<PGSimpleDataSource>();
+        var migrations = new ArrayList<Flyway>();
+        var shards = new ArrayList<GreetingDao>();
+        int poolSize = 0;
+        for (int shard = 0; shard < shardUrls.length; ++shard) {
+            var dataSource = new PGSimpleDataSource();
+            dataSource.setUrl(shardUrls[shard].trim());
+            dataSource.setUser("jetty2");
+            dataSource.setPassword("jetty2");
+            var hikariConfig = new HikariConfig();
+            hikariConfig.setDataSource(dataSource);
+            if (lowFootprint) {
+                // a connection costs a backend process on the server and buffers here;
+                // one or two is plenty for a small instance
+                hikariConfig.setMaximumPoolSize(2);
+                hikariConfig.setMinimumIdle(1);
+            }
+            var hikariDataSource = new HikariDataSource(hikariConfig);
+            dataSources.add(dataSource);
+            poolSize += hikariDataSource.getMaximumPoolSize();
+
+            migrations.add(Flyway.configure().dataSource(hikariDataSource)
+                    .javaMigrations(new ShardedGreetingVersions(shard, shardUrls.length)).load());
+            maintenance.scheduleWithFixedDelay(GreetingPartitions.maintenanceJob(hikariDataSource, 3,
+                    greetingRetentionDays == null ? null : Duration.ofDays(greetingRetentionDays)), 0, 6,
+                    TimeUnit.HOURS);
+
+            // time spent waiting on the pool shows up in Server-Timing as db-pool
+            var jdbi = Jdbi.create(RequestTimings.timedConnections(hikariDataSource));
+            jdbi.getConfig(SqlStatements.class).setSqlParser(sqlParser);
+            jdbi.setSqlLogger(new RequestTimings.TimedSqlLogger(new Slf4JSqlLogger()));
+            shards.add(jdbi.installPlugin(new SqlObjectPlugin()).onDemand(GreetingDao.class));
+        }
+
+        // Migrations that backfill big tables (see OnlineMigration) can take a long
+        // time. They're written so the application can run alongside them, so with
+        // -DmigrateInBackground=true we start serving straight away instead
+        Runnable migrate = () -> migrations.forEach(Flyway::migrate);
+        if (Boolean.getBoolean("migrateInBackground")) {
+            var migrationThread = new Thread(migrate, "flyway-migrate");
+            migrationThread.setDaemon(true);
+            migrationThread.start();
+        } else {
+            migrate.run();
+        }
+
+        var database = shards.size() == 1 ? new UnshardedDatabase(shards.get(0)) : new ShardedDatabase(shards, poolSize);
+
+        // new greetings, from this instance or any other, arrive by LISTEN
+        var greetingEvents = new GreetingEvents();
+        for (var dataSource : dataSources)
+            greetingEvents.startListener(dataSource, database);
+
+        // with -DwarmupSeconds=N, spend up to N seconds getting the JIT going on an
+        // in-process copy of the server before opening any ports
+        Integer warmupSeconds = Integer.getInteger("warmupSeconds");
+        var warmup = warmupSeconds == null ? null : Warmup.run(database, Duration.ofSeconds(warmupSeconds));
+
+        // with -DexportMinutes, a CSV snapshot of every greeting for
+        // /api/hello/export, taken that often. Each one copies the whole table, so
+        // it's off unless asked for, and never with -DlowFootprint. Over its own
+        // connections and thread, so a long COPY neither holds one of the api's
+        // connections nor holds up the other maintenance jobs
+        Integer exportMinutes = Integer.getInteger("exportMinutes");
+        GreetingExport export = null;
+        if (exportMinutes != null && !lowFootprint) {
+            export = new GreetingExport(dataSources, Paths.get(System.getProperty("exportDirectory",
+                    Paths.get(System.getProperty("java.io.tmpdir"), "greetings-export").toString())));
+            var exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                var thread = new Thread(r, "greetings-export");
+                thread.setDaemon(true);
+                return thread;
+            });
+            exporter.scheduleWithFixedDelay(export::refresh, 0, exportMinutes, TimeUnit.MINUTES);
+        }
+
+        // with -DwriteBehind=true, a POST returns 202 once its greeting is on local
+        // disk (-DspoolDirectory) and a background drainer adds it to the database.
+        // Whatever a crash leaves in the spool is added on the next start
+        GreetingSpool spool = null;
+        if (Boolean.getBoolean("writeBehind")) {
+            spool = new GreetingSpool(Paths.get(System.getProperty("spoolDirectory",
+                    Paths.get(System.getProperty("java.io.tmpdir"), "greetings-spool").toString())), database);
+            database.writeBehind(spool);
+        }
+        // which spooled greetings have been added only matters until the spool
+        // that held them has drained
+        maintenance.scheduleWithFixedDelay(() -> {
+            try {
+                database.pruneSpooledGreetings(Instant.now().minus(Duration.ofDays(7)));
+            } catch (RuntimeException e) {
+                Logger.getLogger(SimpleServer5WithLogging.class.getName()).log(Level.WARNING,
+                        "couldn't prune spooled greetings", e);
+            }
+        }, 1, 24, TimeUnit.HOURS);
+
+        var metrics = new MetricsServlet().gauge("jdbi_parsed_sql_cache_hit_ratio",
+                () -> sqlParser.cacheStats().hitRate());
+        if (spool != null)
+            metrics.gauge("greeting_spool_depth", spool::depth)
+                    .gauge("greeting_spool_appended_total", spool::appended)
+                    .gauge("greeting_spool_drained_total", spool::drained)
+                    .gauge("greeting_spool_drain_failures_total", spool::drainFailures)
+                    .gauge("greeting_spool_quarantined_total", spool::quarantined);
+        if (warmup != null)
+            metrics.gauge("warmup_seconds", () -> warmup.took().toMillis() / 1000.0)
+                    .gauge("warmup_final_p99_seconds", () -> warmup.lastP99Millis() / 1000);
+        var server = createServer(database, greetingEvents, export, metrics);
+
+        // TODO: https
+
+        server.start();
+        server.join();
+    }
+
+    /**
+     * Everything but the database: connectors, routes and filters, configured
+     * from system properties. SoakTest runs this against an in-memory stand-in.
+     * With no export, /api/hello/export is left out.
+     */
+    public static Server createServer(Database database, GreetingEvents greetingEvents, GreetingExport export,
+            MetricsServlet metrics) throws IOException {
+        // -Dport=-1 turns off TCP, for when we're only reachable through the unix
+        // domain socket
+        int port = Integer.getInteger("port", 9000);
+        String unixSocketPath = System.getProperty("unixSocket");
         String apiPath = "api";
         String apiPathSpec = "/" + apiPath + "/*";
         String originsAllowedToUseApi = "(http|https)://(127.0.0.[0-9]+|localhost)(:[0-9]+)?";
         String swaggerPathSpec = "/swagger.json";
+        boolean serverTimingHeader = Boolean.getBoolean("serverTiming");
+        // -DlowFootprint=true sizes everything for a small container, and loads
+        // what only some requests need when they first do
+        boolean lowFootprint = Boolean.getBoolean("lowFootprint");
+        int maxThreads = Integer.getInteger("maxThreads", lowFootprint ? 16 : 200);
+        int maxQueuedJobs = Integer.getInteger("maxQueuedJobs", 1000);
+        // -DadminPort=-1 serves admin routes on the api connectors, sharing their
+        // threads
+        int adminPort = Integer.getInteger("adminPort", 9001);
+        String adminHost = System.getProperty("adminHost", "127.0.0.1");
+        String adminToken = System.getProperty("adminToken");
+        // JWT bearer auth on the api is on when there's a key to check tokens with
+        String jwtSecret = System.getProperty("jwtSecret");
+        String jwtKeys = System.getProperty("jwtKeys");
+        // -DmicroCacheMillis=250 keeps whole api GET responses that long
+        Integer microCacheMillis = Integer.getInteger("microCacheMillis");
+        long microCacheBytes = Long.getLong("microCacheBytes", 16 << 20);
 
         // base web server support
-        var server = new Server();
-        var serverConnector = new ServerConnector(server);
-        serverConnector.setPort(port);
-        server.addConnector(serverConnector);
+        // the default thread pool queue is unbounded, so under overload requests
+        // just wait longer and longer. With a bound, Jetty turns new work away
+        // instead
+        var threadPool = new QueuedThreadPool(maxThreads, lowFootprint ? 2 : 8, 60000,
+                new BlockingArrayQueue<>(maxQueuedJobs));
+        threadPool.setName("jetty");
+        var server = new Server(threadPool);
+        if (port >= 0) {
+            // by default there's an acceptor and selectors per few cores, each with a
+            // thread for good
+            var serverConnector = lowFootprint ? new ServerConnector(server, 1, 1) : new ServerConnector(server);
+            serverConnector.setName("api");
+            serverConnector.setPort(port);
+            server.addConnector(serverConnector);
+        }
+
+        // optionally listen on a unix domain socket, for a reverse proxy on the same
+        // host. Skips the loopback TCP stack entirely. The remote address on this
+        // connector is meaningless, so trust the proxy's X-Forwarded-For headers for
+        // the access log
+        if (unixSocketPath != null) {
+            var httpConfiguration = new HttpConfiguration();
+            httpConfiguration.addCustomizer(new ForwardedRequestCustomizer());
+            var unixConnector = new UnixDomainServerConnector(server, new HttpConnectionFactory(httpConfiguration));
+            // a socket file left behind by a crash would make the bind fail
+            Files.deleteIfExists(Paths.get(unixSocketPath));
+            unixConnector.setName("api");
+            unixConnector.setUnixDomainPath(Paths.get(unixSocketPath));
+            server.addConnector(unixConnector);
+        }
         var servletContextHandler = new ServletContextHandler();
         servletContextHandler.setContextPath("/");
-        server.setHandler(servletContextHandler);
 
-        var jdbi = Jdbi.create(hikariDataSource);
+        // bursts of identical reads answered from memory, in front of everything
+        // else for the api
+        Handler apiHandler = servletContextHandler;
+        if (microCacheMillis != null) {
+            var microCache = new MicroCacheHandler("/" + apiPath + "/", Duration.ofMillis(microCacheMillis),
+                    microCacheBytes);
+            microCache.setHandler(servletContextHandler);
+            metrics.microCache(microCache);
+            apiHandler = microCache;
+        }
+
+        // Route groups: the api gets the connectors above and the main thread pool.
+        // swagger-ui and metrics get their own port and a small pool of their own,
+        // so a burst of static asset fetches (or a stuck metrics scrape) can't take
+        // threads from the api, and vice versa. Contexts are tied to connectors by
+        // connector name
+        metrics.threadPool("api", threadPool);
+        var adminContextHandler = servletContextHandler;
+        if (adminPort >= 0) {
+            var adminThreadPool = new QueuedThreadPool(lowFootprint ? 4 : 8, lowFootprint ? 1 : 2, 60000,
+                    new BlockingArrayQueue<>(64));
+            adminThreadPool.setName("admin");
+            var adminConnector = new ServerConnector(server, adminThreadPool, null, null, 1, 1,
+                    new HttpConnectionFactory());
+            adminConnector.setName("admin");
+            adminConnector.setHost(adminHost);
+            adminConnector.setPort(adminPort);
+            server.addConnector(adminConnector);
+            metrics.threadPool("admin", adminThreadPool);
+
+            adminContextHandler = new ServletContextHandler();
+            adminContextHandler.setContextPath("/");
+            adminContextHandler.setVirtualHosts(new String[] { "@admin" });
+            servletContextHandler.setVirtualHosts(new String[] { "@api" });
+            var contexts = new ContextHandlerCollection();
+            contexts.setHandlers(new Handler[] { apiHandler, adminContextHandler });
+            server.setHandler(contexts);
+        } else {
+            server.setHandler(apiHandler);
+        }
 
         // add rest api endpoint
-        var application = ResourceConfig
-                .forApplication(new SimpleServer5WithLogging(new Database(jdbi)));
+        var application = ResourceConfig.forApplication(new SimpleServer5WithLogging(database));
+        application.register(new RequestTimings.SerializationTimer());
+        application.register(new JfrEvents.ResourceMethodFilter());
+        // it needs JAXB, which we don't have, so all it would do is load classes
+        // and warn
+        application.property(ServerProperties.WADL_FEATURE_DISABLE, true);
         var servletHolder = new ServletHolder(new ServletContainer(application));
         servletContextHandler.addServlet(servletHolder, apiPathSpec);
 
-        // add swagger definition servlet - note that this could be easily pre-computed
-        var reader = new Reader(new SwaggerConfiguration()) {
-            @Override
-            protected String resolveApplicationPath() {
-                return apiPath;
-            }
-        };
-        var openApi = reader.read(application.getSingletons().stream().map(Object::getClass).collect(toSet()));
-        var openApiJson = Json.pretty(openApi);
+        // add server-sent events stream of new greetings. This is a plain async
+        // servlet rather than a Jersey resource - see GreetingEvents for why. It's
+        // under the api path, so it gets the same filters
+        servletContextHandler.addServlet(new ServletHolder(greetingEvents.servlet()), "/" + apiPath + "/hello/stream");
+
+        // add the greeting, repeated, streamed without building it in memory
+        servletContextHandler.addServlet(new ServletHolder(new RepeatedGreetingServlet(database, 100_000_000)),
+                "/" + apiPath + "/hello/repeat");
+
+        // add the export snapshot, served straight from its file
+        if (export != null) {
+            servletContextHandler.addServlet(new ServletHolder(export.servlet()), "/" + apiPath + "/hello/export");
+            metrics.gauge("greetings_export_age_seconds", export::ageSeconds);
+        }
+
+        // add swagger definition servlet. The definition is generated at build time
+        // by OpenApiGenerator (see pom.xml), already gzipped too, so swagger never
+        // even gets loaded
+        if (!lowFootprint)
+            OpenApiDefinition.load();
         servletContextHandler.addServlet(new ServletHolder(new HttpServlet() {
             @Override
             protected void doGet(HttpServletRequest req, HttpServletResponse resp)
                     throws ServletException, IOException {
+                byte[] openApiJson = OpenApiDefinition.JSON;
+                byte[] openApiJsonGzip = OpenApiDefinition.GZIP;
+                if (openApiJson == null) {
+                    resp.setStatus(NOT_FOUND.getStatusCode());
+                    return;
+                }
                 resp.addHeader("Content-Type", "application/json");
-                resp.getWriter().write(openApiJson);
+                resp.addHeader("Vary", "Accept-Encoding");
+                String acceptEncoding = req.getHeader("Accept-Encoding");
+                byte[] content = openApiJson;
+                if (openApiJsonGzip != null && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    resp.addHeader("Content-Encoding", "gzip");
+                    content = openApiJsonGzip;
+                }
+                resp.setContentLength(content.length);
+                resp.getOutputStream().write(content);
             }
         }), swaggerPathSpec);
 
-        // add swagger-ui servlet
+        // add swagger-ui servlet, in the admin group. The definition it loads stays
+        // with the api, so "try it out" goes to the api's port
         // (this is incomplete - we should set media-types, cache ttls and compression.
         // Also, we should safety check req.getRequestURI since it comes from the
         // client)
-        servletContextHandler.addServlet(new ServletHolder(new HttpServlet() {
+        adminContextHandler.addServlet(new ServletHolder(new HttpServlet() {
             @Override
             protected void doGet(HttpServletRequest req, HttpServletResponse resp)
                     throws ServletException, IOException {
                 // serve contents of swagger-ui webjar, but replace URL with ours
                 String resourcePath = "/META-INF/resources/webjars" + req.getRequestURI();
-                var swaggerUiFile = getClass().getResourceAsStream(resourcePath);
-                if (swaggerUiFile == null) {
-                    resp.setStatus(NOT_FOUND.getStatusCode());
-                } else if (resourcePath.endsWith("/swagger-initializer.js")) {
-                    ByteArrayOutputStream originialInitializer = new ByteArrayOutputStream();
-                    swaggerUiFile.transferTo(originialInitializer);
-                    String initializer = originialInitializer.toString().replaceAll(
-                            "https://petstore.swagger.io/v2/swagger.json", "http://localhost:9000/swagger.json");
-                    resp.getOutputStream().write(initializer.getBytes(StandardCharsets.UTF_8));
-                } else {
-                    swaggerUiFile.transferTo(resp.getOutputStream());
+                try (var swaggerUiFile = getClass().getResourceAsStream(resourcePath)) {
+                    if (swaggerUiFile == null) {
+                        resp.setStatus(NOT_FOUND.getStatusCode());
+                    } else if (resourcePath.endsWith("/swagger-initializer.js")) {
+                        ByteArrayOutputStream originialInitializer = new ByteArrayOutputStream();
+                        swaggerUiFile.transferTo(originialInitializer);
+                        String initializer = originialInitializer.toString().replaceAll(
+                                "https://petstore.swagger.io/v2/swagger.json",
+                                "http://localhost:" + port + "/swagger.json");
+                        resp.getOutputStream().write(initializer.getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        swaggerUiFile.transferTo(resp.getOutputStream());
+                    }
                 }
             };
         }), "/swagger-ui/*");
 
+        // add request timing filter first, so it wraps everything else. Timings
+        // always go to the access log; the Server-Timing header is opt-in with
+        // -DserverTiming=true, since it tells clients a little about our internals
+        var timingFilter = new RequestTimings.TimingFilter(serverTimingHeader);
+        servletContextHandler.addFilter(new FilterHolder(timingFilter), "/*", EnumSet.of(DispatcherType.REQUEST));
+        if (adminContextHandler != servletContextHandler)
+            adminContextHandler.addFilter(new FilterHolder(timingFilter), "/*", EnumSet.of(DispatcherType.REQUEST));
+
         // add CORS filter that allows any port on localhost or 127.0.0.x.
         var corsFilterHolder = new FilterHolder(new Filter() {
 
             @Override
             public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
                     throws IOException, ServletException {
+                long corsStart = System.nanoTime();
+                var corsEvent = new JfrEvents.CorsEvent();
+                corsEvent.begin();
                 String requestOrigin = ((HttpServletRequest) request).getHeader("Origin");
-                if (requestOrigin != null && requestOrigin.matches(originsAllowedToUseApi)) {
+                boolean allowed = requestOrigin != null && requestOrigin.matches(originsAllowedToUseApi);
+                if (allowed) {
                     var responseWrapper = new HttpServletResponseWrapper((HttpServletResponse) response) {
                     };
                     responseWrapper.addHeader("Access-Control-Allow-Origin", requestOrigin);
@@ -235,6 +799,14 @@ public class SimpleServer5WithLogging extends Application {
                         responseWrapper.addHeader("Access-Control-Allow-Methods", requestedMethod);
                     response = responseWrapper;
                 }
+                RequestTimings.record(RequestTimings.Phase.CORS, corsStart);
+                corsEvent.end();
+                if (corsEvent.shouldCommit()) {
+                    corsEvent.traceId = JfrEvents.traceId();
+                    corsEvent.origin = requestOrigin;
+                    corsEvent.allowed = allowed;
+                    corsEvent.commit();
+                }
                 chain.doFilter(request, response);
             }
 
@@ -242,20 +814,38 @@ public class SimpleServer5WithLogging extends Application {
         servletContextHandler.addFilter(corsFilterHolder, swaggerPathSpec, EnumSet.of(DispatcherType.REQUEST));
         servletContextHandler.addFilter(corsFilterHolder, apiPathSpec, EnumSet.of(DispatcherType.REQUEST));
 
-        // #4
-        // Log access requests in standard web server format
-        server.setRequestLog(new CustomRequestLog());
+        // require a bearer token on the api. After CORS, so browsers can read the
+        // 401, and before the concurrency limit, so unauthenticated requests don't
+        // count against it
+        if (jwtSecret != null || jwtKeys != null) {
+            var jwtAuthFilter = new JwtAuthFilter(jwtSecret == null ? null : jwtSecret.getBytes(StandardCharsets.UTF_8),
+                    jwtKeys == null ? null : Paths.get(jwtKeys), System.getProperty("jwtIssuer"),
+                    System.getProperty("jwtAudience"));
+            servletContextHandler.addFilter(new FilterHolder(jwtAuthFilter), apiPathSpec,
+                    EnumSet.of(DispatcherType.REQUEST));
+            metrics.gauge("jwt_verified_cache_hit_ratio", jwtAuthFilter::cacheHitRatio);
+        }
 
-        // #5
-        // enable SQL statement logging
-        Logger jdbiLogger = Logger.getLogger("org.jdbi.sql");
-        jdbiLogger.setLevel(Level.FINE);
-        jdbi.setSqlLogger(new Slf4JSqlLogger());
+        // shed load on the api when latency climbs, rather than let requests pile
+        // up. After CORS, so browsers can read the 503
+        var concurrencyLimitFilter = new ConcurrencyLimitFilter(20, 1, maxThreads).routes(apiPathSpec,
+                routeTemplates(SimpleResource.class));
+        servletContextHandler.addFilter(new FilterHolder(concurrencyLimitFilter), apiPathSpec,
+                EnumSet.of(DispatcherType.REQUEST));
 
-        // TODO: oauth
-        // TODO: https
+        // add metrics, in the admin group
+        metrics.singleFlight("latest", database.latestReads).singleFlight("history", database.historyReads);
+        metrics.concurrencyLimits(concurrencyLimitFilter).gauge("greeting_stream_subscribers",
+                greetingEvents::subscriberCount);
+        adminContextHandler.addServlet(new ServletHolder(metrics), "/metrics");
 
-        server.start();
-        server.join();
+        // add flight recorder control, in the admin group. Needs -DadminToken=...
+        adminContextHandler.addServlet(new ServletHolder(new FlightRecorderServlet(adminToken)), "/jfr/*");
+
+        // #4
+        // Log access requests in standard web server format, plus trace id and
+        // per-phase timings
+        server.setRequestLog(new RequestTimings.AccessLog(new Slf4jRequestLogWriter()));
+        return server;
     }
 }
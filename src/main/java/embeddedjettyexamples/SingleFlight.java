@@ -0,0 +1,87 @@
+package embeddedjettyexamples;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Concurrent callers asking for the same key share one call: the first one
+ * runs it, the rest wait for its result. In a burst of identical reads that's
+ * one query and one pooled connection instead of one each.
+ * <p>
+ * Nothing is kept once a call finishes - the next caller runs it again. And a
+ * caller only joins a call that started at the current epoch: whoever owns
+ * the data bumps the epoch after every change, so nobody is handed a result
+ * read before a change they could already have seen.
+ */
+public class SingleFlight<K, V> {
+    private record Flight<V>(long epoch, CompletableFuture<V> result) {
+    }
+
+    private final ConcurrentHashMap<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongSupplier epoch;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder executions = new LongAdder();
+
+    public SingleFlight(LongSupplier epoch) {
+        this.epoch = epoch;
+    }
+
+    public V get(K key, Supplier<V> call) {
+        calls.increment();
+        long now = epoch.getAsLong();
+        var mine = new Flight<V>(now, new CompletableFuture<>());
+        var flight = inFlight.compute(key,
+                (k, current) -> current != null && current.epoch() == now ? current : mine);
+        if (flight != mine)
+            return join(flight.result());
+
+        executions.increment();
+        V value;
+        try {
+            value = call.get();
+        } catch (RuntimeException | Error e) {
+            inFlight.remove(key, mine);
+            mine.result().completeExceptionally(e);
+            throw e;
+        }
+        // gone before it's complete, so no one new picks up a finished call
+        inFlight.remove(key, mine);
+        mine.result().complete(value);
+        return value;
+    }
+
+    private static <V> V join(CompletableFuture<V> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause)
+                throw cause;
+            if (e.getCause() instanceof Error cause)
+                throw cause;
+            throw e;
+        }
+    }
+
+    public long calls() {
+        return calls.sum();
+    }
+
+    /**
+     * @return calls that actually ran - the rest shared one of these
+     */
+    public long executions() {
+        return executions.sum();
+    }
+
+    /**
+     * @return the fraction of calls that shared another's result
+     */
+    public double coalescingRatio() {
+        long calls = calls();
+        return calls == 0 ? 0 : 1 - (double) executions() / calls;
+    }
+}
@@ -0,0 +1,309 @@
+package embeddedjettyexamples;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleFunction;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import embeddedjettyexamples.SimpleServer5WithLogging.UnshardedDatabase;
+
+/**
+ * Run SimpleServer5WithLogging for a long time under mixed traffic, and fail if
+ * heap after GC, live threads, open file descriptors or GC pauses trend upward.
+ * Startup being fast says nothing about hour five.
+ * <p>
+ * The server runs in this JVM, with the same logging setup as main, against an
+ * in-memory stand-in for the database, so there's nothing to install. Every
+ * sample forces a GC first, so heap is always measured after collection.
+ * <p>
+ * Usage: SoakTest [minutes] [clients] [sampleSeconds]
+ * <p>
+ * The server reads the usual system properties; ports default to any free one.
+ * It logs every request, so send stderr somewhere with room.
+ */
+public class SoakTest {
+    // samples in the first part of the run are left out of the trends - pools,
+    // caches and the JIT are still filling up
+    private static final double WARMUP_FRACTION = 0.2;
+    private static final double MAX_ERROR_RATE = 0.001;
+
+    record Sample(double minutes, long requests, long errors, long heapAfterGc, int threads, long fileDescriptors,
+            long gcPauses, double gcPauseMillis) {
+    }
+
+    /**
+     * Grow by more than the larger of tolerance times the average or slack over
+     * the run, and it's a leak.
+     */
+    record Check(String name, ToDoubleFunction<Sample> value, double tolerance, double slack) {
+    }
+
+    private static final List<Check> CHECKS = List.of(
+            new Check("heap after GC", Sample::heapAfterGc, 0.10, 4 << 20),
+            new Check("threads", Sample::threads, 0, 8),
+            new Check("file descriptors", Sample::fileDescriptors, 0, 16),
+            new Check("average GC pause", Sample::gcPauseMillis, 0.5, 2));
+
+    public static void main(String[] args) throws Exception {
+        double minutes = args.length > 0 ? Double.parseDouble(args[0]) : 60;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int sampleSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        System.setProperty("port", System.getProperty("port", "0"));
+        System.setProperty("adminPort", System.getProperty("adminPort", "0"));
+        SimpleServer5WithLogging.configureLogging();
+
+        var greetingEvents = new GreetingEvents();
+        var greetings = new InMemoryGreetings(greetingEvents);
+        var database = new UnshardedDatabase(greetings);
+        greetings.watcher = database;
+        database.listening();
+        database.addGreeting("soak test");
+
+        Server server = SimpleServer5WithLogging.createServer(database, greetingEvents, null, new MetricsServlet());
+        server.start();
+        int apiPort = localPort(server, "api").orElseThrow(() -> new IllegalStateException("needs a TCP port"));
+        String api = "http://localhost:" + apiPort;
+        String admin = "http://localhost:" + localPort(server, "admin").orElse(apiPort);
+
+        long deadline = System.nanoTime() + (long) (minutes * 60e9);
+        var traffic = new Traffic(api, admin, deadline);
+        var threads = new ArrayList<Thread>();
+        for (int i = 0; i < clients; ++i)
+            threads.add(new Thread(traffic::run, "soak-client-" + i));
+        threads.add(new Thread(traffic::streams, "soak-stream-client"));
+        for (var thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        var samples = new ArrayList<Sample>();
+        var sampler = new Sampler();
+        long start = System.nanoTime();
+        System.out.printf("%8s %10s %7s %10s %8s %6s %9s %9s%n", "minutes", "requests", "errors", "heap MB",
+                "threads", "fds", "gcs", "pause ms");
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(Math.min(sampleSeconds * 1000L, Math.max(1, (deadline - System.nanoTime()) / 1_000_000)));
+            var sample = sampler.sample((System.nanoTime() - start) / 60e9, traffic);
+            samples.add(sample);
+            System.out.printf("%8.1f %10d %7d %10.1f %8d %6d %9d %9.2f%n", sample.minutes(), sample.requests(),
+                    sample.errors(), sample.heapAfterGc() / 1048576.0, sample.threads(), sample.fileDescriptors(),
+                    sample.gcPauses(), sample.gcPauseMillis());
+        }
+        server.stop();
+
+        boolean passed = verdict(samples, traffic);
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static Optional<Integer> localPort(Server server, String connectorName) {
+        for (var connector : server.getConnectors())
+            if (connector instanceof ServerConnector serverConnector && connectorName.equals(connector.getName()))
+                return Optional.of(serverConnector.getLocalPort());
+        return Optional.empty();
+    }
+
+    private static boolean verdict(List<Sample> samples, Traffic traffic) {
+        boolean passed = true;
+        long requests = traffic.requests.get();
+        if (traffic.errors.get() > requests * MAX_ERROR_RATE) {
+            System.out.printf("%d errors in %d requests%n", traffic.errors.get(), requests);
+            passed = false;
+        }
+
+        var measured = samples.subList((int) (samples.size() * WARMUP_FRACTION), samples.size());
+        if (measured.size() < 3) {
+            System.out.println("too few samples to see a trend - run longer or sample more often");
+            return passed;
+        }
+        double span = measured.get(measured.size() - 1).minutes() - measured.get(0).minutes();
+        for (var check : CHECKS) {
+            double average = measured.stream().mapToDouble(check.value()).average().getAsDouble();
+            double growth = slope(measured, check.value()) * span;
+            double allowed = Math.max(check.tolerance() * average, check.slack());
+            boolean ok = growth <= allowed;
+            System.out.printf("%-18s %s: grew %.1f over %.1f minutes, allowed %.1f%n", check.name(),
+                    ok ? "ok" : "TRENDING UP", growth, span, allowed);
+            passed &= ok;
+        }
+        return passed;
+    }
+
+    /**
+     * Least squares, per minute. Less fooled by one bad sample than comparing
+     * the first and last.
+     */
+    private static double slope(List<Sample> samples, ToDoubleFunction<Sample> value) {
+        double meanX = samples.stream().mapToDouble(Sample::minutes).average().getAsDouble();
+        double meanY = samples.stream().mapToDouble(value).average().getAsDouble();
+        double covariance = 0;
+        double variance = 0;
+        for (var sample : samples) {
+            double dx = sample.minutes() - meanX;
+            covariance += dx * (value.applyAsDouble(sample) - meanY);
+            variance += dx * dx;
+        }
+        return variance == 0 ? 0 : covariance / variance;
+    }
+
+    /**
+     * Reads everything through JMX, the same numbers a monitoring agent would
+     * see.
+     */
+    static class Sampler {
+        private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        private long gcCount;
+        private long gcMillis;
+
+        Sampler() {
+            gcCount = totalGcCount();
+            gcMillis = totalGcMillis();
+        }
+
+        Sample sample(double minutes, Traffic traffic) {
+            // pauses since the last sample, not counting the GC the last sample
+            // forced
+            long pauses = totalGcCount() - gcCount;
+            double pauseMillis = pauses == 0 ? 0 : (double) (totalGcMillis() - gcMillis) / pauses;
+
+            var memory = ManagementFactory.getMemoryMXBean();
+            memory.gc();
+            long heapAfterGc = memory.getHeapMemoryUsage().getUsed();
+            gcCount = totalGcCount();
+            gcMillis = totalGcMillis();
+
+            long fileDescriptors = ManagementFactory.getOperatingSystemMXBean() instanceof UnixOperatingSystemMXBean unix
+                    ? unix.getOpenFileDescriptorCount()
+                    : -1;
+            return new Sample(minutes, traffic.requests.get(), traffic.errors.get(), heapAfterGc,
+                    ManagementFactory.getThreadMXBean().getThreadCount(), fileDescriptors, pauses, pauseMillis);
+        }
+
+        private long totalGcCount() {
+            return collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+        }
+
+        private long totalGcMillis() {
+            return collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+        }
+    }
+
+    /**
+     * Mostly reads, some writes, and every other route now and then - including
+     * the swagger-ui assets, whose streams we want to see closed.
+     */
+    static class Traffic {
+        private final String api;
+        private final String admin;
+        private final long deadline;
+        private final String swaggerUiVersion;
+        // a fixed executor, so the client's own threads don't come and go
+        private final HttpClient client = HttpClient.newBuilder().executor(Executors.newFixedThreadPool(4))
+                .connectTimeout(Duration.ofSeconds(5)).build();
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        private volatile String etag = "\"0\"";
+
+        Traffic(String api, String admin, long deadline) throws IOException {
+            this.api = api;
+            this.admin = admin;
+            this.deadline = deadline;
+            var webjar = new Properties();
+            try (var in = getClass().getResourceAsStream("/META-INF/maven/org.webjars/swagger-ui/pom.properties")) {
+                webjar.load(in);
+            }
+            swaggerUiVersion = webjar.getProperty("version");
+        }
+
+        void run() {
+            while (System.nanoTime() < deadline) {
+                int dice = ThreadLocalRandom.current().nextInt(100);
+                HttpRequest.Builder request;
+                if (dice < 40)
+                    request = get(api + "/api/hello");
+                else if (dice < 60)
+                    request = get(api + "/api/hello").header("If-None-Match", etag);
+                else if (dice < 70)
+                    request = HttpRequest.newBuilder(URI.create(api + "/api/hello"))
+                            .header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers
+                                    .ofString("{\"greeting\": \"soak " + requests.get() + "\"}"));
+                else if (dice < 80)
+                    request = get(api + "/api/hello/history?limit=20");
+                else if (dice < 85)
+                    request = get(api + "/api/hello/repeat?repeat=1000");
+                else if (dice < 90)
+                    request = get(api + "/swagger.json").header("Accept-Encoding", "gzip");
+                else if (dice < 95)
+                    request = get(admin + "/swagger-ui/" + swaggerUiVersion
+                            + (dice % 2 == 0 ? "/index.html" : "/swagger-initializer.js"));
+                else
+                    request = get(admin + "/metrics");
+                send(request.build());
+            }
+        }
+
+        private HttpRequest.Builder get(String uri) {
+            return HttpRequest.newBuilder(URI.create(uri)).timeout(Duration.ofSeconds(30));
+        }
+
+        private void send(HttpRequest request) {
+            requests.incrementAndGet();
+            try {
+                var response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                int status = response.statusCode();
+                response.headers().firstValue("ETag").ifPresent(tag -> etag = tag);
+                // 503 is the concurrency limit shedding load, which is allowed
+                if (status >= 400 && status != 503)
+                    errors.incrementAndGet();
+            } catch (IOException e) {
+                errors.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Subscribe to the event stream, take a few greetings and hang up, over
+         * and over, so subscribers are added and removed all run long.
+         */
+        void streams() {
+            byte[] buffer = new byte[4096];
+            while (System.nanoTime() < deadline) {
+                try (InputStream in = client
+                        .send(get(api + "/api/hello/stream").build(), HttpResponse.BodyHandlers.ofInputStream())
+                        .body()) {
+                    int received = 0;
+                    while (received < 4096 && System.nanoTime() < deadline) {
+                        int read = in.read(buffer);
+                        if (read < 0)
+                            break;
+                        received += read;
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
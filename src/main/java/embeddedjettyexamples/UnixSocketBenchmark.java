@@ -0,0 +1,180 @@
+package embeddedjettyexamples;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.unixdomain.server.UnixDomainServerConnector;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Compare loopback TCP with a unix domain socket, using the same Jetty server
+ * and a trivial servlet so that the transport is most of what we measure. Each
+ * client connection is keep-alive and sends one request at a time.
+ * <p>
+ * Usage: UnixSocketBenchmark [requestsPerConnection] [connections]
+ */
+public class UnixSocketBenchmark {
+    private static final byte[] REQUEST = "GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        int requestsPerConnection = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        var socketPath = Files.createTempDirectory("jetty-uds").resolve("jetty.sock");
+        var server = new Server();
+        var tcpConnector = new ServerConnector(server);
+        tcpConnector.setHost("127.0.0.1");
+        tcpConnector.setPort(0);
+        server.addConnector(tcpConnector);
+        var unixConnector = new UnixDomainServerConnector(server);
+        unixConnector.setUnixDomainPath(socketPath);
+        server.addConnector(unixConnector);
+
+        var servletContextHandler = new ServletContextHandler();
+        servletContextHandler.setContextPath("/");
+        servletContextHandler.addServlet(new ServletHolder(new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                resp.getWriter().write("Hello world");
+            }
+        }), "/hello");
+        server.setHandler(servletContextHandler);
+        server.start();
+
+        try {
+            var tcpAddress = new InetSocketAddress("127.0.0.1", tcpConnector.getLocalPort());
+            var unixAddress = UnixDomainSocketAddress.of(socketPath);
+
+            // warm up both paths through Jetty before measuring either
+            run("tcp", () -> openTcp(tcpAddress), requestsPerConnection / 4, connections, false);
+            run("unix", () -> openUnix(unixAddress), requestsPerConnection / 4, connections, false);
+
+            System.out.printf("%-6s %12s %10s %10s %10s%n", "", "req/s", "p50 us", "p99 us", "max us");
+            run("tcp", () -> openTcp(tcpAddress), requestsPerConnection, connections, true);
+            run("unix", () -> openUnix(unixAddress), requestsPerConnection, connections, true);
+        } finally {
+            server.stop();
+            Files.deleteIfExists(socketPath);
+            Files.deleteIfExists(socketPath.getParent());
+        }
+    }
+
+    private static SocketChannel openTcp(InetSocketAddress address) throws IOException {
+        var channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return channel;
+    }
+
+    private static SocketChannel openUnix(UnixDomainSocketAddress address) throws IOException {
+        var channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.connect(address);
+        return channel;
+    }
+
+    private static void run(String name, Callable<SocketChannel> connect, int requestsPerConnection,
+            int connections, boolean report) throws Exception {
+        var executor = Executors.newFixedThreadPool(connections);
+        try {
+            var results = new ArrayList<Future<long[]>>();
+            long start = System.nanoTime();
+            for (int i = 0; i < connections; ++i)
+                results.add(executor.submit(() -> {
+                    try (var channel = connect.call()) {
+                        return drive(channel, requestsPerConnection);
+                    }
+                }));
+            long[] latencies = new long[requestsPerConnection * connections];
+            int offset = 0;
+            for (var result : results) {
+                long[] connectionLatencies = result.get();
+                System.arraycopy(connectionLatencies, 0, latencies, offset, connectionLatencies.length);
+                offset += connectionLatencies.length;
+            }
+            long elapsed = System.nanoTime() - start;
+
+            if (report) {
+                Arrays.sort(latencies);
+                System.out.printf("%-6s %12.0f %10.1f %10.1f %10.1f%n", name, latencies.length * 1e9 / elapsed,
+                        latencies[latencies.length / 2] / 1e3, latencies[(int) (latencies.length * 0.99)] / 1e3,
+                        latencies[latencies.length - 1] / 1e3);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Send requests one at a time, reading each response fully before sending
+     * the next.
+     */
+    private static long[] drive(SocketChannel channel, int requests) throws IOException {
+        long[] latencies = new long[requests];
+        var request = ByteBuffer.wrap(REQUEST);
+        var response = ByteBuffer.allocate(8192);
+        for (int i = 0; i < requests; ++i) {
+            long start = System.nanoTime();
+            request.rewind();
+            while (request.hasRemaining())
+                channel.write(request);
+            response.clear();
+            readResponse(channel, response);
+            latencies[i] = System.nanoTime() - start;
+        }
+        return latencies;
+    }
+
+    private static void readResponse(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        int headerEnd = -1;
+        int contentLength = 0;
+        while (true) {
+            if (channel.read(buffer) < 0)
+                throw new IOException("connection closed mid-response");
+            if (headerEnd < 0) {
+                headerEnd = indexOfHeaderEnd(buffer);
+                if (headerEnd < 0)
+                    continue;
+                contentLength = parseContentLength(buffer, headerEnd);
+            }
+            if (buffer.position() >= headerEnd + contentLength)
+                return;
+        }
+    }
+
+    private static int indexOfHeaderEnd(ByteBuffer buffer) {
+        for (int i = 3; i < buffer.position(); ++i)
+            if (buffer.get(i - 3) == '\r' && buffer.get(i - 2) == '\n' && buffer.get(i - 1) == '\r'
+                    && buffer.get(i) == '\n')
+                return i + 1;
+        return -1;
+    }
+
+    private static int parseContentLength(ByteBuffer buffer, int headerEnd) {
+        String headers = new String(buffer.array(), 0, headerEnd, StandardCharsets.US_ASCII).toLowerCase();
+        int at = headers.indexOf("content-length:");
+        if (at < 0)
+            throw new IllegalStateException("benchmark expects a Content-Length response");
+        int end = headers.indexOf('\r', at);
+        return Integer.parseInt(headers.substring(at + "content-length:".length(), end).trim());
+    }
+}
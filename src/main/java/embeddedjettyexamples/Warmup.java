@@ -0,0 +1,174 @@
+package embeddedjettyexamples;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.LocalConnector;
+
+import embeddedjettyexamples.SimpleServer5WithLogging.Database;
+import embeddedjettyexamples.SimpleServer5WithLogging.UnshardedDatabase;
+
+/**
+ * Run traffic through a throwaway copy of the server before the real one
+ * starts, so the first real requests don't pay for the interpreter and cold
+ * Jersey, Jackson and Jdbi. The JIT's work is per JVM, not per server, so it
+ * carries over.
+ * <p>
+ * The copy is built by the same createServer as the real one, against an
+ * in-memory database, and is only reachable in-process through a
+ * LocalConnector - requests still go through HTTP parsing, the filters and
+ * Jersey, but nothing listens on a port. The real database only gets reads, so
+ * pool and driver warm up too, and a warmup can't write anything.
+ * <p>
+ * Requests go in rounds; we stop when a round's p99 hasn't beaten the best so
+ * far by much for a few rounds running, or when the budget runs out.
+ */
+public class Warmup {
+    private static final Logger logger = Logger.getLogger(Warmup.class.getName());
+    private static final int ROUND = 500;
+    private static final int SETTLED_ROUNDS = 5;
+    private static final double IMPROVEMENT = 0.9;
+
+    public record Report(Duration took, long requests, double firstP50Millis, double firstP99Millis,
+            double lastP50Millis, double lastP99Millis, boolean settled) {
+    }
+
+    /**
+     * @param database the real one, for reads - or null to leave it alone
+     */
+    public static Report run(Database database, Duration budget) throws Exception {
+        if (budget.isZero() || budget.isNegative())
+            throw new IllegalArgumentException("warmup budget must be positive, not " + budget);
+        var events = new GreetingEvents();
+        var greetings = new InMemoryGreetings(events);
+        var standIn = new UnshardedDatabase(greetings);
+        greetings.watcher = standIn;
+        standIn.listening();
+        standIn.addGreeting("warmup");
+
+        var server = SimpleServer5WithLogging.createServer(standIn, events, null, new MetricsServlet());
+        // the api's routes are tied to connectors named "api"
+        var connector = new LocalConnector(server);
+        connector.setName("api");
+        server.setConnectors(new Connector[] { connector });
+        // not worth a line in the access log each
+        server.setRequestLog(null);
+
+        String authorization = authorization();
+        List<String> requests = List.of(
+                get("/api/hello", authorization),
+                get("/api/hello/history?limit=20", authorization),
+                post("/api/hello", "{\"greeting\":\"warmup\"}", authorization),
+                get("/api/hello/repeat?repeat=100", authorization),
+                get("/swagger.json", null));
+
+        long start = System.nanoTime();
+        long deadline = start + budget.toNanos();
+        long[] latencies = new long[ROUND];
+        double[] first = null;
+        double[] last = null;
+        double best = Double.MAX_VALUE;
+        int roundsWithoutImprovement = 0;
+        long sent = 0;
+        server.start();
+        try {
+            // at least one round, however short the budget, so there's something to
+            // report
+            do {
+                for (int i = 0; i < ROUND; ++i) {
+                    long requestStart = System.nanoTime();
+                    String response = connector.getResponse(requests.get((int) (sent % requests.size())));
+                    latencies[i] = System.nanoTime() - requestStart;
+                    if (response == null || !response.startsWith("HTTP/1.1 2"))
+                        logger.fine("warmup request failed: " + response);
+                    if (database != null && sent % 10 == 0)
+                        readRealDatabase(database);
+                    ++sent;
+                }
+                last = percentiles(latencies);
+                if (first == null)
+                    first = last;
+                if (last[1] < best * IMPROVEMENT) {
+                    best = last[1];
+                    roundsWithoutImprovement = 0;
+                } else {
+                    best = Math.min(best, last[1]);
+                    ++roundsWithoutImprovement;
+                }
+            } while (System.nanoTime() < deadline && roundsWithoutImprovement < SETTLED_ROUNDS);
+        } finally {
+            server.stop();
+        }
+
+        var report = new Report(Duration.ofNanos(System.nanoTime() - start), sent, first[0], first[1], last[0],
+                last[1], roundsWithoutImprovement >= SETTLED_ROUNDS);
+        logger.info(String.format(
+                "warmed up in %.1fs over %d requests (%s): p50 %.2fms -> %.2fms, p99 %.2fms -> %.2fms",
+                report.took().toMillis() / 1000.0, report.requests(),
+                report.settled() ? "latency settled" : "budget ran out", report.firstP50Millis(),
+                report.lastP50Millis(), report.firstP99Millis(), report.lastP99Millis()));
+        return report;
+    }
+
+    private static void readRealDatabase(Database database) {
+        try {
+            // history always goes to the database; the latest greeting is cached
+            database.getGreetings(Long.MAX_VALUE, 20);
+        } catch (RuntimeException e) {
+            // e.g. migrations still running in the background
+            logger.log(Level.FINE, "warmup read failed", e);
+        }
+    }
+
+    /**
+     * @return {p50, p99} in milliseconds
+     */
+    private static double[] percentiles(long[] latencies) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        return new double[] { sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6 };
+    }
+
+    private static String get(String path, String authorization) {
+        return "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n" + (authorization == null ? "" : authorization)
+                + "\r\n";
+    }
+
+    private static String post(String path, String json, String authorization) {
+        return "POST " + path + " HTTP/1.1\r\nHost: localhost\r\n" + (authorization == null ? "" : authorization)
+                + "Content-Type: application/json\r\nContent-Length: "
+                + json.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" + json;
+    }
+
+    /**
+     * With -DjwtSecret, sign our own token so the api lets us in. With only
+     * -DjwtKeys we can't, and requests are turned away at auth - still worth
+     * something, just less.
+     */
+    private static String authorization() throws Exception {
+        String secret = System.getProperty("jwtSecret");
+        if (secret == null)
+            return null;
+        var base64 = Base64.getUrlEncoder().withoutPadding();
+        String issuer = System.getProperty("jwtIssuer");
+        String audience = System.getProperty("jwtAudience");
+        String claims = "{\"sub\":\"warmup\",\"exp\":" + (System.currentTimeMillis() / 1000 + 3600)
+                + (issuer == null ? "" : ",\"iss\":\"" + issuer + "\"")
+                + (audience == null ? "" : ",\"aud\":\"" + audience + "\"") + "}";
+        String signed = base64.encodeToString("{\"alg\":\"HS256\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8))
+                + "." + base64.encodeToString(claims.getBytes(StandardCharsets.UTF_8));
+        var mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        return "Authorization: Bearer " + signed + "."
+                + base64.encodeToString(mac.doFinal(signed.getBytes(StandardCharsets.UTF_8))) + "\r\n";
+    }
+}
@@ -0,0 +1,3 @@
+-- monotonically increasing version, used for ETags and change notifications.
+-- existing rows are numbered as the column is added
+alter table greetings add column version bigserial;
@@ -0,0 +1,9 @@
+-- greetings that came through the write-behind spool, so replaying the spool
+-- after a crash doesn't add them twice. Only needs to go back as far as a
+-- replay could, and is pruned to that
+create table spooled_greetings
+(
+	spool_id		uuid primary key,
+	applied			timestamp with time zone not null default current_timestamp
+);
+create index spooled_greetings_applied on spooled_greetings (applied);